@@ -11,6 +11,8 @@ import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import qz.printer.PDFResourceCache;
+import qz.printer.action.WebAppState;
 import qz.utils.SystemUtilities;
 import qz.ws.PrintSocketServer;
 
@@ -42,6 +44,8 @@ public class AboutInfo {
             about.put("environment", environment());
             about.put("ssl", ssl(keyStore));
             about.put("libraries", libraries());
+            about.put("caches", caches());
+            about.put("html", html());
         }
         catch(JSONException | GeneralSecurityException e) {
             log.error("Failed to write JSON data", e);
@@ -89,6 +93,22 @@ public class AboutInfo {
         return environment;
     }
 
+    private static JSONObject caches() throws JSONException {
+        JSONObject caches = new JSONObject();
+
+        caches.put("pdfResources", PDFResourceCache.getStats());
+
+        return caches;
+    }
+
+    private static JSONObject html() throws JSONException {
+        JSONObject html = new JSONObject();
+
+        html.put("renderer", WebAppState.getState().name().toLowerCase(Locale.ENGLISH));
+
+        return html;
+    }
+
     private static JSONObject ssl(KeyStore keystore) throws JSONException, KeyStoreException, CertificateEncodingException {
         JSONObject ssl = new JSONObject();
 
@@ -12,11 +12,18 @@
 
 package qz.common;
 
-import org.apache.commons.lang3.ArrayUtils;
-
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -29,7 +36,8 @@ import java.util.List;
 @SuppressWarnings("UnusedDeclaration") //Library class
 public final class ByteArrayBuilder {
 
-    private List<Byte> buffer;
+    private byte[] buffer;
+    private int count;
 
 
     /**
@@ -67,7 +75,7 @@ public final class ByteArrayBuilder {
      * @param initialCapacity the initial capacity of the <code>ByteArrayBuilder</code>
      */
     public ByteArrayBuilder(byte[] initialContents, int initialCapacity) {
-        buffer = new ArrayList<>(initialCapacity);
+        buffer = new byte[Math.max(initialCapacity, 16)];
         if (initialContents != null) {
             append(initialContents);
         }
@@ -77,7 +85,7 @@ public final class ByteArrayBuilder {
      * Empties the <code>ByteArrayBuilder</code>
      */
     public void clear() {
-        buffer.clear();
+        count = 0;
     }
 
     /**
@@ -87,7 +95,11 @@ public final class ByteArrayBuilder {
      * @param endIndex   Ending index, exclusive
      */
     public final void clearRange(int startIndex, int endIndex) {
-        buffer.subList(startIndex, endIndex).clear();
+        if (startIndex < 0 || endIndex > count || startIndex > endIndex) {
+            throw new IndexOutOfBoundsException(String.format("Range %d-%d is outside of length %d", startIndex, endIndex, count));
+        }
+        System.arraycopy(buffer, endIndex, buffer, startIndex, count - endIndex);
+        count -= endIndex - startIndex;
     }
 
     /**
@@ -96,7 +108,24 @@ public final class ByteArrayBuilder {
      * @return the number of bytes in the <code>ByteArrayBuilder</code>
      */
     public int getLength() {
-        return buffer.size();
+        return count;
+    }
+
+    /**
+     * Grows the backing array so that at least <code>minCapacity</code> bytes
+     * can be stored without further allocations
+     *
+     * @param minCapacity the minimum number of bytes to hold
+     */
+    public void ensureCapacity(int minCapacity) {
+        if (minCapacity < 0) {
+            throw new OutOfMemoryError("Required capacity exceeds the maximum array size");
+        }
+        if (minCapacity > buffer.length) {
+            int newCapacity = Math.max(buffer.length << 1, minCapacity);
+            if (newCapacity < 0) { newCapacity = Integer.MAX_VALUE - 8; } //overflowed doubling
+            buffer = Arrays.copyOf(buffer, newCapacity);
+        }
     }
 
     /**
@@ -107,15 +136,53 @@ public final class ByteArrayBuilder {
      * @return this <code>ByteArrayBuilder</code>
      */
     public final ByteArrayBuilder append(byte[] bytes) {
-        for(byte b : bytes) {
-            buffer.add(b);
-        }
+        return append(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Appends <code>length</code> bytes of <code>bytes</code>, starting at
+     * <code>offset</code>, to this <code>ByteArrayBuilder</code>
+     *
+     * @param bytes  the source array
+     * @param offset position of the first byte to append
+     * @param length number of bytes to append
+     * @return this <code>ByteArrayBuilder</code>
+     */
+    public final ByteArrayBuilder append(byte[] bytes, int offset, int length) {
+        ensureCapacity(count + length);
+        System.arraycopy(bytes, offset, buffer, count, length);
+        count += length;
+        return this;
+    }
+
+    /**
+     * Appends the remaining contents of <code>bytes</code>, leaving its position at its limit
+     *
+     * @param bytes the buffer to read from
+     * @return this <code>ByteArrayBuilder</code>
+     */
+    public final ByteArrayBuilder append(ByteBuffer bytes) {
+        int length = bytes.remaining();
+        ensureCapacity(count + length);
+        bytes.get(buffer, count, length);
+        count += length;
         return this;
     }
 
+    /**
+     * Appends the current contents of another <code>ByteArrayBuilder</code>
+     *
+     * @param bytes the builder to copy from
+     * @return this <code>ByteArrayBuilder</code>
+     */
+    public final ByteArrayBuilder append(ByteArrayBuilder bytes) {
+        return append(bytes.buffer, 0, bytes.count);
+    }
+
     public final ByteArrayBuilder append(List<Byte> bytes) {
+        ensureCapacity(count + bytes.size());
         for(byte b : bytes) {
-            buffer.add(b);
+            buffer[count++] = b;
         }
         return this;
     }
@@ -144,6 +211,37 @@ public final class ByteArrayBuilder {
         return append(stringBuilder.toString(), charset);
     }
 
+    /**
+     * Encodes the remaining characters of <code>chars</code> straight into this
+     * <code>ByteArrayBuilder</code>, without creating an intermediate byte array.
+     * The encoder is reset first, so it may be reused across calls by a single thread.
+     *
+     * @param chars   the characters to append
+     * @param encoder the encoder to use, with its error actions already set
+     * @return this <code>ByteArrayBuilder</code>
+     */
+    public final ByteArrayBuilder append(CharBuffer chars, CharsetEncoder encoder) throws CharacterCodingException {
+        encoder.reset();
+        ensureCapacity(count + (int)Math.ceil(chars.remaining() * encoder.averageBytesPerChar()));
+
+        boolean flushing = false;
+        while(true) {
+            ByteBuffer out = ByteBuffer.wrap(buffer, count, buffer.length - count);
+            CoderResult result = flushing? encoder.flush(out):encoder.encode(chars, out, true);
+            count = out.position();
+
+            if (result.isOverflow()) {
+                ensureCapacity(buffer.length + (int)Math.ceil(Math.max(chars.remaining(), 1) * encoder.maxBytesPerChar()));
+            } else if (result.isError()) {
+                result.throwException();
+            } else if (!flushing) {
+                flushing = true;
+            } else {
+                return this;
+            }
+        }
+    }
+
     /**
      * Returns the full contents of this <code>ByteArrayBuilder</code> as
      * a single <code>byte</code> array.
@@ -151,6 +249,45 @@ public final class ByteArrayBuilder {
      * @return The contents of this <code>ByteArrayBuilder</code> as a single <code>byte</code> array
      */
     public byte[] getByteArray() {
-        return ArrayUtils.toPrimitive(buffer.toArray(new Byte[buffer.size()]));
+        return Arrays.copyOf(buffer, count);
+    }
+
+    /**
+     * Writes the contents of this <code>ByteArrayBuilder</code> without copying them first
+     *
+     * @param out the stream to write to
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, count);
+    }
+
+    /**
+     * Returns a stream reading directly from the contents of this <code>ByteArrayBuilder</code>.
+     * The builder should not be modified while the stream is in use.
+     *
+     * @return An <code>InputStream</code> over the current contents
+     */
+    public InputStream getInputStream() {
+        return new ByteArrayInputStream(buffer, 0, count);
+    }
+
+    /**
+     * Returns a stream appending everything written to it onto the end of this <code>ByteArrayBuilder</code>.
+     *
+     * @return An <code>OutputStream</code> into this builder, which needs no closing
+     */
+    public OutputStream getOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) {
+                ensureCapacity(count + 1);
+                buffer[count++] = (byte)b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                append(b, off, len);
+            }
+        };
     }
 }
@@ -23,25 +23,49 @@ public class BookBundle extends Book implements Printable {
 
     private static final Logger log = LoggerFactory.getLogger(BookBundle.class);
 
-    private Printable lastPrint;
-    private int lastStarted;
+    // Page of its printable that each page of the book prints
+    private List<Integer> sourcePages = new ArrayList<>();
 
     public BookBundle() {
         super();
     }
 
+    /**
+     * Appends page {@code sourceIndex} of {@code painter}, so a printable only needs to be appended once for any selection of its pages
+     */
+    public void appendPage(Printable painter, PageFormat page, int sourceIndex) {
+        super.append(painter, page);
+        sourcePages.add(sourceIndex);
+    }
+
+    @Override
+    public void append(Printable painter, PageFormat page) {
+        appendPage(painter, page, nextSourceIndex(painter));
+    }
+
+    @Override
+    public void append(Printable painter, PageFormat page, int numPages) {
+        for(int i = 0; i < numPages; i++) {
+            append(painter, page);
+        }
+    }
+
+    /** Pages appended without an index follow on from the last page when it is from the same printable */
+    private int nextSourceIndex(Printable painter) {
+        int last = getNumberOfPages() - 1;
+        if (last >= 0 && getPrintable(last) == painter) {
+            return sourcePages.get(last) + 1;
+        }
+
+        return 0;
+    }
+
     @Override
     public int print(Graphics g, PageFormat format, int pageIndex) throws PrinterException {
         log.trace("Requested page {} for printing", pageIndex);
 
         if (pageIndex < getNumberOfPages()) {
-            Printable printable = getPrintable(pageIndex);
-            if (printable != lastPrint) {
-                lastPrint = printable;
-                lastStarted = pageIndex;
-            }
-
-            return printable.print(g, format, pageIndex - lastStarted);
+            return getPrintable(pageIndex).print(g, format, sourcePages.get(pageIndex));
         }
 
         return NO_SUCH_PAGE;
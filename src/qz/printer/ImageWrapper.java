@@ -9,25 +9,27 @@
  */
 package qz.printer;
 
-import org.bouncycastle.util.Arrays;
-import org.codehaus.jettison.json.JSONArray;
-import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qz.common.ByteArrayBuilder;
 import qz.exception.InvalidRawImageException;
-import qz.utils.ByteUtilities;
-import qz.utils.Packbits;
+import qz.printer.image.EscPosEncoder;
+import qz.printer.image.ImageEncoder;
+import qz.printer.image.ImageEncoders;
 
-import javax.imageio.ImageIO;
-import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.URL;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Abstract wrapper for images to be printed with thermal printers.
@@ -71,9 +73,45 @@ public class ImageWrapper {
      */
     public static final int CHECK_ALPHA = 2;
 
+    /**
+     * Compression of ZPL graphic fields.
+     * {@code ASCII} is ZPL's run-length scheme, {@code Z64} is deflate and base64 with a CRC,
+     * and {@code AUTO} picks whichever is smallest for the image.
+     */
+    public enum Compression {
+        NONE, ASCII, Z64, AUTO
+    }
+
+    /**
+     * How ESC/POS images are sent.
+     * {@code SLICE} sends {@code ESC *} bit image stripes, {@code RASTER} sends the packed rows with {@code GS v 0},
+     * and {@code GRAPHICS} loads the image into the printer's graphics memory with {@code GS ( L} and prints it from there.
+     */
+    public enum EscPosMode {
+        SLICE, RASTER, GRAPHICS
+    }
+
+    /**
+     * Sides of the image that blank rows or columns are trimmed from.
+     * {@code BOTH} trims the top and bottom, {@code ALL} trims every side.
+     */
+    public enum CropType {
+        NONE, TOP, BOTTOM, BOTH, LEFT, RIGHT, ALL;
+
+        boolean cropsTop() { return this == TOP || this == BOTH || this == ALL; }
+
+        boolean cropsBottom() { return this == BOTTOM || this == BOTH || this == ALL; }
+
+        boolean cropsLeft() { return this == LEFT || this == ALL; }
+
+        boolean cropsRight() { return this == RIGHT || this == ALL; }
+    }
+
     private int lumaThreshold = 127;
-    private boolean[] imageAsBooleanArray;        //Image representation as an array of boolean, with true values representing imageAsBooleanArray dots
-    private int[] imageAsIntArray;                //Image representation as an array of ints, with each bit representing a imageAsBooleanArray dot
+    private byte[] imageAsPackedBits;             //Image representation with each bit representing a black dot, each row starting on a new byte
+    private int bytesPerRow;
+    private int width;
+    private int height;
     private ByteArrayBuilder byteBuffer = new ByteArrayBuilder();
     private int alphaThreshold = 127;
     private BufferedImage bufferedImage;
@@ -83,6 +121,10 @@ public class ImageWrapper {
     private int xPos = 0;   // X coordinate used for EPL2, CPCL.  Irrelevant for ZPLII, ESC/POS, etc
     private int yPos = 0;   // Y coordinate used for EPL2, CPCL.  Irrelevant for ZPLII, ESC/POS, etc
     private int dotDensity = 32;  // Generally 32 = Single (normal) 33 = Double (higher res) for ESC/POS.  Irrelevant for all other languages.
+    private Compression compression = Compression.NONE;  // Used for ZPL only
+    private EscPosMode escPosMode = EscPosMode.SLICE;  // Used for ESC/POS only
+    private String graphicsKey;  // ESC/POS graphics mode only, stores the image in NV memory under this key when set
+    private boolean binaryGraphics = false;  // Used for CPCL only, sends CG instead of hexadecimal EG
 
     /**
      * Creates a new
@@ -201,6 +243,152 @@ public class ImageWrapper {
         this.dotDensity = dotDensity;
     }
 
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    public EscPosMode getEscPosMode() {
+        return escPosMode;
+    }
+
+    public void setEscPosMode(EscPosMode escPosMode) {
+        this.escPosMode = escPosMode;
+    }
+
+    public String getGraphicsKey() {
+        return graphicsKey;
+    }
+
+    /**
+     * Sets the key that {@code GRAPHICS} mode stores the image under in the printer's NV memory,
+     * so it can later be printed with {@link EscPosEncoder#getStoredGraphicCommand(String)}.
+     * When {@code null} the image is only loaded into the print buffer.
+     *
+     * @param graphicsKey Two printable ASCII characters, or {@code null}
+     */
+    public void setGraphicsKey(String graphicsKey) {
+        if (graphicsKey != null) { EscPosEncoder.checkGraphicsKey(graphicsKey); }
+        this.graphicsKey = graphicsKey;
+    }
+
+    public boolean isBinaryGraphics() {
+        return binaryGraphics;
+    }
+
+    public void setBinaryGraphics(boolean binaryGraphics) {
+        this.binaryGraphics = binaryGraphics;
+    }
+
+    /**
+     * Trims blank rows and columns from the sides of the image given by {@code cropType}.
+     * Blank means no dot would be printed, so the image is cropped as it has been converted, with any quantization settings applied.
+     * Images with nothing to print are left as they are.
+     */
+    public void setCropType(CropType cropType) {
+        if (cropType == CropType.NONE) { return; }
+
+        //blank checks are made on 64 dots at a time
+        ByteBuffer bits = ByteBuffer.wrap(imageAsPackedBits);
+
+        int top = 0, bottom = getHeight() - 1;
+        if (cropType.cropsTop()) {
+            while(top < bottom && isBlankRow(bits, top)) { top++; }
+        }
+        if (cropType.cropsBottom()) {
+            while(bottom > top && isBlankRow(bits, bottom)) { bottom--; }
+        }
+        if (top == bottom && isBlankRow(bits, top)) {
+            log.debug("Image is blank, not cropping");
+            return;
+        }
+
+        int left = 0, right = bufferedImage.getWidth() - 1;
+        if (cropType.cropsLeft() || cropType.cropsRight()) {
+            //every dot used in any row of the remaining image
+            ByteBuffer used = ByteBuffer.allocate((bytesPerRow + 7) / 8 * 8);
+            for(int y = top; y <= bottom; y++) {
+                int offset = y * bytesPerRow;
+                int i = 0;
+                for(; i + 8 <= bytesPerRow; i += 8) {
+                    used.putLong(i, used.getLong(i) | bits.getLong(offset + i));
+                }
+                for(; i < bytesPerRow; i++) {
+                    used.put(i, (byte)(used.get(i) | bits.get(offset + i)));
+                }
+            }
+
+            int first = 0;
+            while(first < bytesPerRow && used.get(first) == 0) { first++; }
+            if (first == bytesPerRow) {
+                log.debug("Image is blank, not cropping");
+                return;
+            }
+
+            if (cropType.cropsLeft()) {
+                left = first * 8 + Integer.numberOfLeadingZeros(used.get(first) & 0xFF) - 24;
+            }
+            if (cropType.cropsRight()) {
+                int b = bytesPerRow - 1;
+                while(used.get(b) == 0) { b--; }
+                right = b * 8 + 7 - Integer.numberOfTrailingZeros(used.get(b) & 0xFF);
+            }
+        }
+
+        if (top == 0 && bottom == getHeight() - 1 && left == 0 && right == bufferedImage.getWidth() - 1) { return; }
+        log.debug("Cropping image to {}x{} at {},{}", right - left + 1, bottom - top + 1, left, top);
+
+        int croppedWidth = right - left + 1;
+        int croppedHeight = bottom - top + 1;
+        int croppedRowBytes = (croppedWidth + 7) / 8;
+        byte[] cropped = new byte[croppedRowBytes * croppedHeight];
+
+        int shift = left & 7;
+        for(int y = 0; y < croppedHeight; y++) {
+            int from = (top + y) * bytesPerRow + (left >> 3);
+            int to = y * croppedRowBytes;
+            if (shift == 0) {
+                System.arraycopy(imageAsPackedBits, from, cropped, to, croppedRowBytes);
+            } else {
+                int rowEnd = (top + y + 1) * bytesPerRow;
+                for(int i = 0; i < croppedRowBytes; i++) {
+                    int next = from + i + 1 < rowEnd? imageAsPackedBits[from + i + 1] & 0xFF:0;
+                    cropped[to + i] = (byte)((imageAsPackedBits[from + i] << shift) | (next >>> (8 - shift)));
+                }
+            }
+            //dots past the right edge may have been kept from the original row
+            if ((croppedWidth & 7) != 0) {
+                cropped[to + croppedRowBytes - 1] &= (byte)(0xFF << (8 - (croppedWidth & 7)));
+            }
+        }
+
+        imageAsPackedBits = cropped;
+        bytesPerRow = croppedRowBytes;
+        width = croppedWidth;
+        height = croppedHeight;
+        bufferedImage = bufferedImage.getSubimage(left, top, croppedWidth, croppedHeight);
+
+        if (languageType.requiresImageWidthValidated()) {
+            validateImageWidth();
+        }
+    }
+
+    private boolean isBlankRow(ByteBuffer bits, int y) {
+        int i = y * bytesPerRow;
+        int end = i + bytesPerRow;
+        for(; i + 8 <= end; i += 8) {
+            if (bits.getLong(i) != 0) { return false; }
+        }
+        for(; i < end; i++) {
+            if (bits.get(i) != 0) { return false; }
+        }
+
+        return true;
+    }
+
     public int getxPos() {
         return xPos;
     }
@@ -227,217 +415,228 @@ public class ImageWrapper {
      * @return true if the pixel should be black, false otherwise
      */
     private boolean isBlack(int rgbPixel) {
-        Color color = new Color(rgbPixel, true);
-
-        int r = color.getRed();
-        int g = color.getGreen();
-        int b = color.getBlue();
-        int a = color.getAlpha();
+        int a = rgbPixel >>> 24;
         switch(getImageQuantizationMethod()) {
             case CHECK_LUMA:
                 if (a < getLumaThreshold()) {
                     return false; // assume pixels that are less opaque than the luma threshold should be considered to be white
                 }
 
+                int r = (rgbPixel >> 16) & 0xFF;
+                int g = (rgbPixel >> 8) & 0xFF;
+                int b = rgbPixel & 0xFF;
                 int luma = ((r * 299) + (g * 587) + (b * 114)) / 1000; //luma formula
                 return luma < getLumaThreshold(); //pixels that have less luma than the threshold are black
             case CHECK_ALPHA:
                 return a > getAlphaThreshold(); //pixels that are more opaque than the threshold are black
             case CHECK_BLACK: //only fully black pixels are black
             default:
-                return color.equals(Color.BLACK); //The default
+                return rgbPixel == 0xFF000000; //The default, opaque black
 
         }
     }
 
     /**
-     * Sets ImageAsBooleanArray. boolean is used instead of int for memory
-     * considerations.
+     * Converts the image to monochrome, reading it one row at a time and packing
+     * eight pixels per byte, with black pixels as 1's. Each row starts on a new byte,
+     * and any bits past the width of the image are left white.
+     * <p/>
+     * Common image types are read straight from their raster, anything else goes through getRGB().
      */
-    private boolean[] generateBlackPixels(BufferedImage bi) {
+    public byte[] generateBlackPixels(BufferedImage bi) {
         log.info("Converting image to monochrome");
         int h = bi.getHeight();
         int w = bi.getWidth();
-        int[] rgbPixels = bi.getRGB(0, 0, w, h, null, 0, w);
-
-       /*
-        * It makes most sense to have black pixels as 1's and white pixels
-        * as zero's, however some printer manufacturers had this reversed
-        * and used 0's for the black pixels.  EPL is a common language that
-        * uses 0's for black pixels.
-        * See also: https://support.zebra.com/cpws/docs/eltron/gw_command.htm
-        */
-        boolean[] pixels = new boolean[rgbPixels.length];
-        for(int i = 0; i < rgbPixels.length; i++) {
-            pixels[i] = languageType.requiresImageOutputInverted() != isBlack(rgbPixels[i]);
+        int rowBytes = (w + 7) / 8;
+        byte[] pixels = new byte[rowBytes * h];
+
+        Raster raster = bi.getRaster();
+        ColorModel cm = bi.getColorModel();
+        int[] row = new int[w];
+
+        switch(bi.getType()) {
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_RGB:
+                //data elements are already in the same form as getRGB()
+                int opaque = bi.getType() == BufferedImage.TYPE_INT_RGB? 0xFF000000:0;
+                for(int y = 0; y < h; y++) {
+                    raster.getDataElements(0, y, w, 1, row);
+                    int offset = y * rowBytes;
+                    for(int x = 0; x < w; x++) {
+                        if (isBlack(row[x] | opaque)) {
+                            pixels[offset + (x >> 3)] |= (byte)(0x80 >>> (x & 7));
+                        }
+                    }
+                }
+                break;
+            case BufferedImage.TYPE_BYTE_GRAY:
+            case BufferedImage.TYPE_BYTE_BINARY:
+            case BufferedImage.TYPE_BYTE_INDEXED:
+                //single sample per pixel, so every possible value can be decided up front
+                boolean[] black = new boolean[1 << cm.getPixelSize()];
+                for(int i = 0; i < black.length; i++) {
+                    black[i] = isBlack(cm.getRGB(new byte[] {(byte)i}));
+                }
+
+                if (black.length == 2 && isPackedRaster(raster)) {
+                    //already eight pixels per byte, one row after another
+                    copyBinaryRows(raster, black, pixels, rowBytes, w);
+                    break;
+                }
+                if (bi.getType() != BufferedImage.TYPE_BYTE_BINARY) {
+                    //one byte per pixel, read as is rather than widened to ints
+                    byte[] samples = new byte[w];
+                    for(int y = 0; y < h; y++) {
+                        raster.getDataElements(0, y, w, 1, samples);
+                        int offset = y * rowBytes;
+                        for(int x = 0; x < w; x++) {
+                            if (black[samples[x] & 0xFF]) {
+                                pixels[offset + (x >> 3)] |= (byte)(0x80 >>> (x & 7));
+                            }
+                        }
+                    }
+                    break;
+                }
+
+                for(int y = 0; y < h; y++) {
+                    raster.getSamples(0, y, w, 1, 0, row);
+                    int offset = y * rowBytes;
+                    for(int x = 0; x < w; x++) {
+                        if (black[row[x]]) {
+                            pixels[offset + (x >> 3)] |= (byte)(0x80 >>> (x & 7));
+                        }
+                    }
+                }
+                break;
+            default:
+                for(int y = 0; y < h; y++) {
+                    bi.getRGB(0, y, w, 1, row, 0, w);
+                    int offset = y * rowBytes;
+                    for(int x = 0; x < w; x++) {
+                        if (isBlack(row[x])) {
+                            pixels[offset + (x >> 3)] |= (byte)(0x80 >>> (x & 7));
+                        }
+                    }
+                }
         }
 
         return pixels;
     }
 
     /**
-     * Converts the internal representation of the image into an array of bytes,
-     * suitable to be sent to a raw printer.
-     *
-     * @return The raw bytes that compose the image
-     */
-    private byte[] getBytes() {
-        log.info("Generating byte array");
-        int[] ints = getImageAsIntArray();
-        byte[] bytes = new byte[ints.length];
-        for(int i = 0; i < ints.length; i++) {
-            bytes[i] = (byte)ints[i];
+     * @return whether {@code raster} holds one bit per pixel in rows starting on a new byte, with nothing before the first row
+     */
+    private static boolean isPackedRaster(Raster raster) {
+        if (!(raster.getSampleModel() instanceof MultiPixelPackedSampleModel) || !(raster.getDataBuffer() instanceof DataBufferByte)) {
+            return false;
         }
 
-        return bytes;
+        MultiPixelPackedSampleModel model = (MultiPixelPackedSampleModel)raster.getSampleModel();
+        return model.getPixelBitStride() == 1 && model.getDataBitOffset() == 0 && raster.getDataBuffer().getOffset() == 0
+                && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0;
     }
 
-    private void generateIntArray() {
-        log.info("Packing bits");
-        imageAsIntArray = new int[imageAsBooleanArray.length / 8];
-        // Convert every eight zero's to a full byte, in decimal
-        for(int i = 0; i < imageAsIntArray.length; i++) {
-            for(int k = 0; k < 8; k++) {
-                imageAsIntArray[i] += (imageAsBooleanArray[8 * i + k]? 1:0) << 7 - k;
+    /**
+     * Copies the rows of a one bit image into {@code pixels}, flipping the bits when its first color is the black one
+     *
+     * @param black Whether each of the image's two colors is black
+     */
+    private static void copyBinaryRows(Raster raster, boolean[] black, byte[] pixels, int rowBytes, int width) {
+        byte[] data = ((DataBufferByte)raster.getDataBuffer()).getData();
+        int stride = ((MultiPixelPackedSampleModel)raster.getSampleModel()).getScanlineStride();
+        int height = raster.getHeight();
+
+        if (black[0] == black[1]) {
+            if (black[0]) { Arrays.fill(pixels, (byte)0xFF); }
+        } else {
+            int invert = black[0]? 0xFF:0;
+            for(int y = 0; y < height; y++) {
+                int from = y * stride;
+                int to = y * rowBytes;
+                for(int i = 0; i < rowBytes; i++) {
+                    pixels[to + i] = (byte)(data[from + i] ^ invert);
+                }
             }
         }
+
+        //bits past the width of the image are left white
+        if ((width & 7) != 0) {
+            for(int y = 0; y < height; y++) {
+                pixels[y * rowBytes + rowBytes - 1] &= (byte)(0xFF << (8 - (width & 7)));
+            }
+        }
+    }
+
+    /**
+     * @return whether the pixel at {@code x}, {@code y} is black, pixels past the bottom of the image are white
+     */
+    public boolean isBlackAt(int x, int y) {
+        return y < height && (imageAsPackedBits[y * bytesPerRow + (x >> 3)] & (0x80 >>> (x & 7))) != 0;
     }
 
     /**
-     * Generates the EPL2 commands to print an image. One command is emitted per
-     * line of the image. This avoids issues with commands being too long.
+     * Generates the commands to print the image in its language, using the {@link ImageEncoder} registered for it.
      *
      * @return The commands to print the image as an array of bytes, ready to be
      * sent to the printer
      */
-    public byte[] getImageCommand(JSONObject opt) throws InvalidRawImageException, UnsupportedEncodingException {
+    public byte[] getImageCommand(JSONObject opt) throws InvalidRawImageException, IOException {
         getByteBuffer().clear();
-
-        switch(languageType) {
-            case ESCP:
-            case ESCP2:
-            case ESCPOS:
-                appendEpsonSlices(getByteBuffer());
-                break;
-            case ZPL:
-            case ZPLII:
-                String zplHexAsString = ByteUtilities.getHexString(getImageAsIntArray());
-                int byteLen = zplHexAsString.length() / 2;
-                int perRow = byteLen / getHeight();
-                StringBuilder zpl = new StringBuilder("^GFA,")
-                        .append(byteLen).append(",").append(byteLen).append(",")
-                        .append(perRow).append(",").append(zplHexAsString);
-
-                getByteBuffer().append(zpl, charset);
-                break;
-            case EPL:
-            case EPL2:
-                StringBuilder epl = new StringBuilder("GW")
-                        .append(getxPos()).append(",")
-                        .append(getyPos()).append(",")
-                        .append(getWidth() / 8).append(",")
-                        .append(getHeight()).append(",");
-
-                getByteBuffer().append(epl, charset).append(getBytes()).append(new byte[] {10});
-                break;
-            case CPCL:
-                String cpclHexAsString = ByteUtilities.getHexString(getImageAsIntArray());
-                StringBuilder cpcl = new StringBuilder("EG ")
-                        .append(getWidth() / 8).append(" ")
-                        .append(getHeight()).append(" ")
-                        .append(getxPos()).append(" ")
-                        .append(getyPos()).append(" ")
-                        .append(cpclHexAsString);
-
-                getByteBuffer().append(cpcl, charset).append(new byte[] {13, 10});
-                break;
-            case EVOLIS:
-                try {
-                    ArrayList<float[]> cymkData = convertToCYMK();
-                    int precision = opt.optInt("precision", 128);
-
-                    // Y,M,C,K,O ribbon
-                    generateRibbonData('y', precision, cymkData.get(1));
-                    generateRibbonData('m', precision, cymkData.get(2));
-                    generateRibbonData('c', precision, cymkData.get(0));
-
-                    //K(black) and O(overlay) are always precision 2
-                    generateRibbonData('k', 2, cymkData.get(3));
-
-                    if (opt.has("overlay")) {
-                        try { generateRibbonData('o', 2, parseOverlay(opt.get("overlay"))); }
-                        catch(Exception e) {
-                            log.error("Failed to parse overlay data: {}", e.getMessage());
-                        }
-                    }
-                }
-                catch(IOException ioe) {
-                    throw new InvalidRawImageException(ioe.getMessage(), ioe);
-                }
-
-                break;
-            case BRASTER:
-                appendBrotherRasterSlices(getByteBuffer());
-                break;
-            case SBPL:
-                validateImageHeight();
-                byte[] esc = new byte[] {0x1b};
-                StringBuilder sbpl = new StringBuilder()
-                        .append(esc).append("H").append(getxPos())
-                        .append(esc).append("V").append(getyPos())
-                        .append(esc).append("GB")
-                        .append(String.format("%03d", getWidth() / 8))
-                        .append(String.format("%03d", getHeight() / 8));
-
-                getByteBuffer().append(sbpl, charset).append(getBytes());
-                break;
-            default:
-                throw new InvalidRawImageException(charset.name() + " image conversion is not yet supported.");
-        }
+        writeImageCommand(opt, getByteBuffer().getOutputStream());
 
         return getByteBuffer().getByteArray();
     }
 
     /**
-     * @return the width of the image
+     * Writes the commands to print the image to {@code out} as they are encoded,
+     * so large images don't need to be held in memory in their encoded form as well.
      */
-    public int getWidth() {
-        return bufferedImage.getWidth();
+    public void writeImageCommand(JSONObject opt, OutputStream out) throws InvalidRawImageException, IOException {
+        ImageEncoder encoder = ImageEncoders.get(languageType);
+        if (encoder == null) {
+            throw new InvalidRawImageException(languageType + " image conversion is not yet supported.");
+        }
+
+        encoder.encode(this, opt, out);
     }
 
     /**
-     * @return the height of the image
+     * Writes the commands to print the image to {@code channel}, as {@link #writeImageCommand(JSONObject, OutputStream)}
      */
-    public int getHeight() {
-        return bufferedImage.getHeight();
+    public void writeImageCommand(JSONObject opt, WritableByteChannel channel) throws InvalidRawImageException, IOException {
+        writeImageCommand(opt, Channels.newOutputStream(channel));
     }
 
     /**
-     * @return the image as an array of booleans
+     * @return the width of the image
      */
-    private boolean[] getImageAsBooleanArray() {
-        return imageAsBooleanArray;
+    public int getWidth() {
+        return width;
     }
 
     /**
-     * @param imageAsBooleanArray the imageAsBooleanArray to set
+     * @return the height of the image
      */
-    private void setImageAsBooleanArray(boolean[] imageAsBooleanArray) {
-        this.imageAsBooleanArray = imageAsBooleanArray;
+    public int getHeight() {
+        return height;
+    }
+
+    public LanguageType getLanguageType() {
+        return languageType;
     }
 
     /**
-     * @return the imageAsIntArray
+     * @return the image as a monochrome bitmap, with each bit representing a black dot and each row starting on a new byte
      */
-    private int[] getImageAsIntArray() {
-        return imageAsIntArray;
+    public byte[] getPackedBits() {
+        return imageAsPackedBits;
     }
 
     /**
-     * @param imageAsIntArray the imageAsIntArray to set
+     * @return the length of each row in {@link #getPackedBits()}
      */
-    private void setImageAsIntArray(int[] imageAsIntArray) {
-        this.imageAsIntArray = imageAsIntArray;
+    public int getBytesPerRow() {
+        return bytesPerRow;
     }
 
     /**
@@ -449,8 +648,10 @@ public class ImageWrapper {
      */
     private void init() {
         log.info("Initializing Image Fields");
-        setImageAsBooleanArray(generateBlackPixels(bufferedImage));
-        generateIntArray();
+        width = bufferedImage.getWidth();
+        height = bufferedImage.getHeight();
+        bytesPerRow = (width + 7) / 8;
+        imageAsPackedBits = generateBlackPixels(bufferedImage);
     }
 
     public Charset getCharset() {
@@ -471,7 +672,7 @@ public class ImageWrapper {
     /**
      * @return the buffer
      */
-    private BufferedImage getBufferedImage() {
+    public BufferedImage getBufferedImage() {
         return bufferedImage;
     }
 
@@ -482,299 +683,6 @@ public class ImageWrapper {
         bufferedImage = buffer;
     }
 
-    private void appendBrotherRasterSlices(ByteArrayBuilder builder) {
-
-        // Enable raster mode
-        // builder.append(new byte[] {0x1B, 0x69, 0x61, 0x01});
-
-        int height = getHeight();
-
-        byte n5 = (byte)(height & 0xff);
-        byte n6 = (byte)(height >> 8 & 0xff);
-        byte n7 = (byte)(height >> 16 & 0xff);
-        byte n8 = (byte)(height >> 24 & 0xff);
-
-        builder.append(new byte[] {0x1B, 0x69, 0x7A, (byte) 0x86, 0x0A, 0x50, 0x00, n5, n6, n7, n8, 0x00, 0x00});
-
-        builder.append(new byte[] {0x4D, 0x02});
-        int offset = 0;
-
-        boolean[] images = getImageAsBooleanArray();
-        int width = getWidth() / 8 + (getWidth() % 8 == 0 ? 0 : 1);
-        while(offset < getHeight()) {
-            int posStart = offset * getWidth();
-            boolean[] row = new boolean[getWidth()];
-            System.arraycopy(images, posStart, row,0, getWidth());
-            if(allFalse(row)) {
-                builder.append(new byte[] {0x5A});
-            } else {
-                byte[] byteArray = new byte[Math.max(162, width)];
-                // Convert every eight zero's to a full byte, in decimal
-                for(int i = 0; i < width; i++) {
-                    for(int k = 0; k < 8; k++) {
-                        if (8 * i + k < row.length) {
-                            byteArray[i + byteArray.length - width] += (row[8 * i + k]? 1:0) << 7 - k;
-                        }
-                    }
-                }
-                byte[] result = Packbits.packbits(reverseBits(byteArray));
-                builder.append(new byte[] {0x67, 0x00, (byte) result.length});
-                builder.append(result);
-            }
-            offset ++;
-
-        }
-
-    }
-
-    boolean allFalse(boolean[] val) {
-        for (boolean v : val) {
-            if (v) {
-                return false;
-            }
-        }
-        return true;
-    }
-
-    byte[] reverseBits (byte[] in) {
-        if(in == null) {
-            return null;
-        } else {
-            byte[] out = new byte[in.length];
-            int i = in.length -1;
-            int o = 0;
-            while (o < out.length) {
-                out[o] = (byte) (Integer.reverse(in[i]) >>> (Integer.SIZE - Byte.SIZE));;
-                i--;
-                o++;
-            }
-            return out;
-        }
-    }
-    /**
-     * http://android-essential-devtopics.blogspot.com/2013/02/sending-bit-image-to-epson-printer.html
-     *
-     * @param builder the ByteArrayBuilder to use
-     */
-    private void appendEpsonSlices(ByteArrayBuilder builder) {
-        //        BitSet dots = data.getDots();
-        //        outputStream.write(PrinterCommands.INIT);
-
-
-        // So we have our bitmap data sitting in a bit array called "dots."
-        // This is one long array of 1s (black) and 0s (white) pixels arranged
-        // as if we had scanned the bitmap from top to bottom, left to right.
-        // The printer wants to see these arranged in bytes stacked three high.
-        // So, essentially, we need to read 24 bits for x = 0, generate those
-        // bytes, and send them to the printer, then keep increasing x. If our
-        // image is more than 24 dots high, we have to send a second bit image
-        // command to draw the next slice of 24 dots in the image.
-
-        // Set the line spacing to 24 dots, the height of each "stripe" of the
-        // image that we're drawing. If we don't do this, and we need to
-        // draw the bitmap in multiple passes, then we'll end up with some
-        // whitespace between slices of the image since the default line
-        // height--how much the printer moves on a newline--is 30 dots.
-        builder.append(new byte[] {0x1B, 0x33, 24});
-
-        // OK. So, starting from x = 0, read 24 bits down and send that data
-        // to the printer. The offset variable keeps track of our global 'y'
-        // position in the image. For example, if we were drawing a bitmap
-        // that is 48 pixels high, then this while loop will execute twice,
-        // once for each pass of 24 dots. On the first pass, the offset is
-        // 0, and on the second pass, the offset is 24. We keep making
-        // these 24-dot stripes until we've execute past the height of the
-        // bitmap.
-        int offset = 0;
-        int sliceBytes = dotDensity < 72 ? 3 : 6;
-        int sliceHeight = dotDensity < 72 ? 24 : 48;
-
-        while(offset < getHeight()) {
-            // The third and fourth parameters to the bit image command are
-            // 'nL' and 'nH'. The 'L' and the 'H' refer to 'low' and 'high', respectively.
-            // All 'n' really is is the width of the image that we're about to draw.
-            // Since the width can be greater than 255 dots, the parameter has to
-            // be split across two bytes, which is why the documentation says the
-            // width is 'nL' + ('nH' * 256).
-            //builder.append(new byte[] {0x1B, 0x2A, 33, -128, 0});
-            byte nL = (byte)((int)(getWidth() % 256));
-            byte nH = (byte)((int)(getWidth() / 256));
-            builder.append(new byte[] {0x1B, 0x2A, (byte)dotDensity, nL, nH});
-
-            for(int x = 0; x < getWidth(); ++x) {
-                // Remember, 24 dots = 24 bits = 3 bytes.
-                // The 'k' variable keeps track of which of those
-                // three bytes that we're currently scribbling into.
-                for(int k = 0; k < sliceBytes; ++k) {
-                    byte slice = 0;
-
-                    // A byte is 8 bits. The 'b' variable keeps track
-                    // of which bit in the byte we're recording.
-                    for(int b = 0; b < 8; ++b) {
-                        // Calculate the y position that we're currently
-                        // trying to draw. We take our offset, divide it
-                        // by 8 so we're talking about the y offset in
-                        // terms of bytes, add our current 'k' byte
-                        // offset to that, multiple by 8 to get it in terms
-                        // of bits again, and add our bit offset to it.
-                        int y = (((offset / 8) + k) * 8) + b;
-
-                        // Calculate the location of the pixel we want in the bit array.
-                        // It'll be at (y * width) + x.
-                        int i = (y * getWidth()) + x;
-
-                        // If the image (or this stripe of the image)
-                        // is shorter than 24 dots, pad with zero.
-                        boolean v = false;
-                        if (i < getImageAsBooleanArray().length) {
-                            v = getImageAsBooleanArray()[i];
-                        }
-
-                        // Finally, store our bit in the byte that we're currently
-                        // scribbling to. Our current 'b' is actually the exact
-                        // opposite of where we want it to be in the byte, so
-                        // subtract it from 7, shift our bit into place in a temp
-                        // byte, and OR it with the target byte to get it into there.
-                        slice |= (byte)((v? 1:0) << (7 - b));
-                    }
-
-                    // Phew! Write the damn byte to the buffer
-                    builder.append(new byte[] {slice});
-                }
-            }
-
-            // We're done with this 24-dot high pass. Render a newline
-            // to bump the print head down to the next line
-            // and keep on trucking.
-            offset += sliceHeight;
-            builder.append(new byte[] {10});
-        }
-
-        // Restore the line spacing to the default of 30 dots.
-        builder.append(new byte[] {0x1B, 0x33, 30});
-
-    }
-
-    private ArrayList<float[]> convertToCYMK() throws IOException {
-        int[] pixels = bufferedImage.getRGB(0, 0, getWidth(), getHeight(), null, 0, getWidth());
-
-        float[] cyan = new float[pixels.length];
-        float[] yellow = new float[pixels.length];
-        float[] magenta = new float[pixels.length];
-        float[] black = new float[pixels.length];
-
-        for(int i = 0; i < pixels.length; i++) {
-            float rgb[] = new Color(pixels[i]).getRGBColorComponents(null);
-            if (rgb[0] == 0.0f && rgb[1] == 0.0f && rgb[2] == 0.0f) {
-                black[i] = 1.0f;
-            } else {
-                cyan[i] = 1.0f - rgb[0];
-                magenta[i] = 1.0f - rgb[1];
-                yellow[i] = 1.0f - rgb[2];
-            }
-        }
-
-        ArrayList<float[]> colorData = new ArrayList<>();
-        colorData.add(cyan);
-        colorData.add(yellow);
-        colorData.add(magenta);
-        colorData.add(black);
-
-        return colorData;
-    }
-
-    private float[] parseOverlay(Object overlay) throws IOException, JSONException {
-        float[] overlayData = new float[getWidth() * getHeight()];
-
-        if (overlay instanceof JSONArray) {
-            //array of rectangles
-            JSONArray masterBlock = (JSONArray)overlay;
-            for(int i = 0; i < masterBlock.length(); i++) {
-                JSONArray block = masterBlock.getJSONArray(i);
-                if (block != null && block.length() == 4) {
-                    for(int y = block.getInt(1) - 1; y < block.getInt(3); y++) {
-                        int off = (y * getWidth());
-                        for(int x = block.getInt(0) - 1; x < block.getInt(2); x++) {
-                            if ((off + x) >= 0 && (off + x) < overlayData.length) {
-                                overlayData[off + x] = 1.0f;
-                            }
-                        }
-                    }
-                }
-            }
-        } else if (overlay instanceof String) {
-            //image mask
-            boolean[] mask = generateBlackPixels(ImageIO.read(new URL((String)overlay)));
-            for(int i = 0; i < overlayData.length; i++) {
-                overlayData[i] = (mask[i]? 1.0f:0.0f);
-            }
-        } else if (overlay instanceof Boolean && (boolean)overlay) {
-            //boolean coat
-            for(int i = 0; i < overlayData.length; i++) {
-                overlayData[i] = 1.0f;
-            }
-        }
-
-        return overlayData;
-    }
-
-    private void generateRibbonData(char ribbon, int precision, float[] colorData) throws UnsupportedEncodingException {
-        log.debug("Building ribbon 'Db;{};{};..'", ribbon, precision);
-
-        getByteBuffer().append("\u001BDb;" + ribbon + ";" + precision + ";", charset);
-        getByteBuffer().append(compactBits(precision, colorData));
-        getByteBuffer().append(new byte[] {0x0D});
-    }
-
-    private ArrayList<Byte> compactBits(int precision, float[] colorData) {
-        ArrayList<Byte> bytes = new ArrayList<>();
-
-        int bits = precisionBits(precision);
-        int empty = 8 - bits;
-
-        for(int i = 0; i < colorData.length; i++) {
-            byte b = 0;
-            int captured = 0;
-
-            b |= byteValue(colorData[i], precision) << empty;
-            captured += 8 - empty;
-
-            while(captured < 8 && (i + 1) < colorData.length) {
-                int excess = bits - empty;
-
-                if (excess > 0) { //because negative shifts don't go backwards
-                    b |= byteValue(colorData[i + 1], precision) >> excess;
-                } else {
-                    b |= byteValue(colorData[i + 1], precision) << Math.abs(excess);
-                }
-                captured += bits - Math.max(0, excess);
-                if (captured < 8 && excess <= 0) { i++; } //if we've eaten an entire color point but haven't filled the byte, increase index looking at
-
-                empty = 8 - excess;
-                if (empty > 8) { empty -= 8; } //wrap around so we never shift over a byte length
-            }
-
-            bytes.add(b);
-        }
-
-        return bytes;
-    }
-
-    private int precisionBits(int precision) {
-        precision--;  // "128" is actually 0-127, subtract one
-        int ones = 0;
-        while(precision > 0) {
-            if (precision % 2 != 0) { ones++; }
-            precision /= 2;
-        }
-
-        return ones;
-    }
-
-    private byte byteValue(float value, int precision) {
-        return (byte)(value * (precision - 1));
-    }
-
     /**
      * Checks if the image width is a multiple of 8, and if it's not,
      * pads the image on the right side with blank pixels. <br />
@@ -782,40 +690,9 @@ public class ImageWrapper {
      * of 8.
      */
     private void validateImageWidth() {
-        BufferedImage oldBufferedImage = bufferedImage;
-        int height = oldBufferedImage.getHeight();
-        int width = oldBufferedImage.getWidth();
         if (width % 8 != 0) {
-            int newWidth = (width / 8 + 1) * 8;
-            BufferedImage newBufferedImage = new BufferedImage(newWidth, height,
-                                                               BufferedImage.TYPE_INT_ARGB);
-
-            Graphics2D g = newBufferedImage.createGraphics();
-            g.drawImage(oldBufferedImage, 0, 0, null);
-            g.dispose();
-            setBufferedImage(newBufferedImage);
-            init();
-        }
-    }
-
-    /**
-     * Checks if the image height is a multiple of 8, and if it's not,
-     * pads the image on the right side with blank pixels. <br />
-     */
-    private void validateImageHeight() {
-        BufferedImage oldBufferedImage = bufferedImage;
-        int height = oldBufferedImage.getHeight();
-        int width = oldBufferedImage.getWidth();
-        if (height % 8 != 0) {
-            int newHeight = (height / 8 + 1) * 8;
-            BufferedImage newBufferedImage = new BufferedImage(width, newHeight,
-                                                               BufferedImage.TYPE_INT_ARGB);
-
-            Graphics2D g = newBufferedImage.createGraphics();
-            g.drawImage(oldBufferedImage, 0, 0, null);
-            g.dispose();
-            setBufferedImage(newBufferedImage);
-            init();
+            //rows are already packed to whole bytes, with the remaining bits blank
+            width = bytesPerRow * 8;
         }
     }
 }
@@ -9,9 +9,7 @@
  */
 package qz.printer;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
 
 /**
  * Enum for print languages, such as ZPL, EPL, etc.
@@ -38,6 +36,18 @@ public enum LanguageType {
     private boolean imgWidthValidated = false;
     private List<String> altNames;
 
+    // upper-case names and alternate names of each language
+    private static final Map<String,LanguageType> types = new HashMap<>();
+
+    static {
+        for(LanguageType lang : values()) {
+            types.put(lang.name(), lang);
+            for(String altName : lang.altNames) {
+                types.put(altName.toUpperCase(Locale.ENGLISH), lang);
+            }
+        }
+    }
+
     LanguageType(boolean imgOutputInvert, boolean imgWidthValidated, String... altNames) {
         this.imgOutputInvert = imgOutputInvert;
         this.imgWidthValidated = imgWidthValidated;
@@ -47,13 +57,8 @@ public enum LanguageType {
     }
 
     public static LanguageType getType(String type) {
-        for(LanguageType lang : LanguageType.values()) {
-            if (type.equalsIgnoreCase(lang.name()) || lang.altNames.contains(type)) {
-                return lang;
-            }
-        }
-
-        return UNKNOWN;
+        LanguageType lang = types.get(type.toUpperCase(Locale.ENGLISH));
+        return lang == null? UNKNOWN:lang;
     }
 
 
@@ -0,0 +1,362 @@
+package qz.printer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rewrites raw print jobs so that the printer produces multiple copies from a single transmission,
+ * by changing or adding the quantity command of each label.
+ * <p/>
+ * Only enough of each language is parsed to find label boundaries and skip over binary graphics.
+ * Copies made by the printer are not collated: each label is repeated before the next one is printed.
+ */
+public class NativeCopies {
+
+    private static final Logger log = LoggerFactory.getLogger(NativeCopies.class);
+
+    private static final int MAX_QUANTITY = 99999999;
+
+    // ZPL commands which place something on the label, used to tell apart printed formats from setup formats
+    private static final String[] ZPL_CONTENT = {"^FO", "^FT", "^FD", "^GF", "^XG", "^IM"};
+
+    private static final Pattern EPL_PRINT = Pattern.compile("P(\\d+)(,\\d+)?[ \\t]*");
+    private static final Pattern EPL_GRAPHIC = Pattern.compile("GW\\d+,\\d+,(\\d+),(\\d+),");
+    private static final Pattern CPCL_HEADER = Pattern.compile("!\\s+(\\d+)\\s+(\\d+)\\s+(\\d+)\\s+(\\d+)\\s+(\\d+)");
+    private static final Pattern CPCL_GRAPHIC = Pattern.compile("CG\\s+(\\d+)\\s+(\\d+)\\s+\\d+\\s+\\d+\\s");
+
+
+    private NativeCopies() {}
+
+    /**
+     * Returns whether {@code language} has a quantity command that can be rewritten.
+     */
+    public static boolean isSupported(LanguageType language) {
+        switch(language) {
+            case ZPL:
+            case ZPLII:
+            case EPL:
+            case EPL2:
+            case CPCL:
+            case SBPL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Multiplies the quantity of every label in {@code job} by {@code copies}.
+     *
+     * @param job      Raw commands of the full job
+     * @param language Printer language the commands are written in
+     * @param copies   Number of copies wanted
+     * @return The rewritten job, or {@code null} if no label boundaries could be found and the job must be resent instead
+     */
+    public static byte[] apply(byte[] job, LanguageType language, int copies) {
+        if (copies < 2) { return job; }
+
+        //ISO-8859-1 maps each byte to a single char, so the job survives the round trip unchanged
+        String commands = new String(job, StandardCharsets.ISO_8859_1);
+        String result;
+
+        switch(language) {
+            case ZPL:
+            case ZPLII:
+                result = applyZpl(commands, copies);
+                break;
+            case EPL:
+            case EPL2:
+                result = applyEpl(commands, copies);
+                break;
+            case CPCL:
+                result = applyCpcl(commands, copies);
+                break;
+            case SBPL:
+                result = applySbpl(commands, copies);
+                break;
+            default:
+                result = null;
+        }
+
+        if (result == null) {
+            log.debug("Unable to find {} labels for printer copies", language);
+            return null;
+        }
+
+        return result.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Each {@code ^XA..^XZ} format gets its {@code ^PQ} quantity multiplied, or one added before {@code ^XZ}.
+     */
+    private static String applyZpl(String commands, int copies) {
+        String upper = asciiUpperCase(commands);
+        if (upper.contains("^CC") || upper.contains("~CC")) {
+            return null; //control characters have been changed, we can't reliably find commands
+        }
+
+        StringBuilder out = new StringBuilder(commands.length() + 16);
+        int labels = 0;
+        int pos = 0;
+
+        while(true) {
+            int start = upper.indexOf("^XA", pos);
+            if (start < 0) { break; }
+
+            int end = findZplEnd(upper, start + 3);
+            if (end < 0) { break; }
+
+            out.append(commands, pos, start);
+            String label = commands.substring(start, end);
+            if (hasZplContent(upper, start, end)) {
+                label = multiplyZplLabel(label, copies);
+                labels++;
+            }
+            out.append(label);
+            pos = end;
+        }
+
+        if (labels == 0) { return null; }
+
+        out.append(commands, pos, commands.length());
+        return out.toString();
+    }
+
+    /**
+     * @return Index of the {@code ^XZ} ending the format started before {@code from}, skipping over binary graphic fields
+     */
+    private static int findZplEnd(String upper, int from) {
+        int pos = from;
+        while(pos < upper.length()) {
+            int caret = upper.indexOf('^', pos);
+            if (caret < 0 || caret + 3 > upper.length()) { return -1; }
+
+            if (upper.startsWith("^XZ", caret)) {
+                return caret;
+            }
+            if (upper.startsWith("^GFB,", caret)) {
+                //^GFB,binaryByteCount,... followed by raw bytes that may contain anything
+                int dataStart = nthIndexOf(upper, ',', caret, 4);
+                int count = parseInt(upper, caret + 5, upper.indexOf(',', caret + 5));
+                if (dataStart < 0 || count < 0) { return -1; }
+                pos = dataStart + 1 + count;
+            } else {
+                pos = caret + 1;
+            }
+        }
+
+        return -1;
+    }
+
+    private static boolean hasZplContent(String upper, int start, int end) {
+        for(String cmd : ZPL_CONTENT) {
+            int found = upper.indexOf(cmd, start);
+            if (found >= 0 && found < end) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static String multiplyZplLabel(String label, int copies) {
+        String upper = asciiUpperCase(label);
+        int pq = upper.lastIndexOf("^PQ");
+
+        if (pq < 0) {
+            return label + "^PQ" + copies;
+        }
+
+        int paramStart = pq + 3;
+        int paramEnd = paramStart;
+        while(paramEnd < label.length() && Character.isDigit(label.charAt(paramEnd))) {
+            paramEnd++;
+        }
+
+        int quantity = Math.max(1, parseInt(label, paramStart, paramEnd));
+        return label.substring(0, paramStart) + multiply(quantity, copies) + label.substring(paramEnd);
+    }
+
+    /**
+     * EPL labels end in a {@code P} line, whose label set count is multiplied.
+     */
+    private static String applyEpl(String commands, int copies) {
+        StringBuilder out = new StringBuilder(commands.length() + 16);
+        int labels = 0;
+        int pos = 0;
+
+        while(pos < commands.length()) {
+            int lineEnd = commands.indexOf('\n', pos);
+            if (lineEnd < 0) { lineEnd = commands.length(); }
+
+            Matcher graphic = EPL_GRAPHIC.matcher(commands).region(pos, lineEnd);
+            if (graphic.lookingAt()) {
+                //GW payload is binary, copy it through without looking for line breaks
+                int dataEnd = Math.min(commands.length(), graphic.end() + parseInt(graphic.group(1)) * parseInt(graphic.group(2)));
+                out.append(commands, pos, dataEnd);
+                pos = dataEnd;
+                continue;
+            }
+
+            int contentEnd = lineEnd > pos && commands.charAt(lineEnd - 1) == '\r'? lineEnd - 1:lineEnd;
+            Matcher print = EPL_PRINT.matcher(commands).region(pos, contentEnd);
+            if (print.matches()) {
+                out.append('P').append(multiply(Math.max(1, parseInt(print.group(1))), copies));
+                if (print.group(2) != null) { out.append(print.group(2)); }
+                out.append(commands, contentEnd, Math.min(commands.length(), lineEnd + 1));
+                labels++;
+            } else {
+                out.append(commands, pos, Math.min(commands.length(), lineEnd + 1));
+            }
+
+            pos = lineEnd + 1;
+        }
+
+        return labels == 0? null:out.toString();
+    }
+
+    /**
+     * CPCL labels start with a {@code ! offset hRes vRes height qty} header, whose quantity is multiplied.
+     */
+    private static String applyCpcl(String commands, int copies) {
+        StringBuilder out = new StringBuilder(commands.length() + 16);
+        int labels = 0;
+        int pos = 0;
+
+        while(pos < commands.length()) {
+            int lineEnd = commands.indexOf('\n', pos);
+            if (lineEnd < 0) { lineEnd = commands.length(); }
+
+            Matcher graphic = CPCL_GRAPHIC.matcher(commands).region(pos, lineEnd);
+            if (graphic.lookingAt()) {
+                int dataEnd = Math.min(commands.length(), graphic.end() + parseInt(graphic.group(1)) * parseInt(graphic.group(2)));
+                out.append(commands, pos, dataEnd);
+                pos = dataEnd;
+                continue;
+            }
+
+            Matcher header = CPCL_HEADER.matcher(commands).region(pos, lineEnd);
+            if (header.lookingAt()) {
+                out.append(commands, pos, header.start(5))
+                        .append(multiply(Math.max(1, parseInt(header.group(5))), copies))
+                        .append(commands, header.end(5), Math.min(commands.length(), lineEnd + 1));
+                labels++;
+            } else {
+                out.append(commands, pos, Math.min(commands.length(), lineEnd + 1));
+            }
+
+            pos = lineEnd + 1;
+        }
+
+        return labels == 0? null:out.toString();
+    }
+
+    /**
+     * SBPL labels are wrapped in {@code <ESC>A..<ESC>Z}, with the quantity set by {@code <ESC>Q}.
+     */
+    private static String applySbpl(String commands, int copies) {
+        StringBuilder out = new StringBuilder(commands.length() + 16);
+        int labels = 0;
+        int pos = 0;
+        int labelStart = -1;
+        int quantityAt = -1;
+        int quantityEnd = -1;
+
+        int i = 0;
+        while(i < commands.length() - 1) {
+            if (commands.charAt(i) != 0x1B) { i++; continue; }
+
+            char cmd = commands.charAt(i + 1);
+            if (cmd == 'A' && (i + 2 >= commands.length() || isSbplSeparator(commands.charAt(i + 2)))) {
+                labelStart = i;
+                quantityAt = -1;
+                i += 2;
+            } else if (cmd == 'Q' && labelStart >= 0) {
+                quantityAt = i + 2;
+                quantityEnd = quantityAt;
+                while(quantityEnd < commands.length() && Character.isDigit(commands.charAt(quantityEnd))) { quantityEnd++; }
+                i = quantityEnd;
+            } else if (cmd == 'Z' && labelStart >= 0) {
+                if (quantityAt >= 0) {
+                    int quantity = Math.max(1, parseInt(commands, quantityAt, quantityEnd));
+                    out.append(commands, pos, quantityAt).append(Math.min(999999, (long)quantity * copies));
+                    out.append(commands, quantityEnd, i);
+                } else {
+                    out.append(commands, pos, i).append('\u001B').append('Q').append(Math.min(999999, copies));
+                }
+                pos = i;
+                labels++;
+                labelStart = -1;
+                i += 2;
+            } else if (cmd == 'G' && i + 2 < commands.length() && commands.charAt(i + 2) == 'B') {
+                //<ESC>GBaaabbb followed by aaa x bbb x 8 bytes of binary graphic data
+                int width = parseInt(commands, i + 3, Math.min(commands.length(), i + 6));
+                int height = parseInt(commands, i + 6, Math.min(commands.length(), i + 9));
+                i = (width < 0 || height < 0)? i + 3:i + 9 + width * height * 8;
+            } else {
+                i += 2;
+            }
+        }
+
+        if (labels == 0) { return null; }
+
+        out.append(commands, pos, commands.length());
+        return out.toString();
+    }
+
+
+    /** {@code <ESC>A} starts a label only when not followed by further parameters, such as {@code <ESC>A1} */
+    private static boolean isSbplSeparator(char ch) {
+        return ch == 0x1B || ch == '\r' || ch == '\n';
+    }
+
+    /** Upper cases only ASCII letters, so that indices in the result match the original commands */
+    private static String asciiUpperCase(String str) {
+        char[] chars = str.toCharArray();
+        for(int i = 0; i < chars.length; i++) {
+            if (chars[i] >= 'a' && chars[i] <= 'z') {
+                chars[i] -= 32;
+            }
+        }
+
+        return new String(chars);
+    }
+
+    private static long multiply(int quantity, int copies) {
+        return Math.min(MAX_QUANTITY, (long)quantity * copies);
+    }
+
+    private static int nthIndexOf(String str, char ch, int from, int n) {
+        int found = from - 1;
+        for(int i = 0; i < n; i++) {
+            found = str.indexOf(ch, found + 1);
+            if (found < 0) { return -1; }
+        }
+
+        return found;
+    }
+
+    private static int parseInt(String str) {
+        return parseInt(str, 0, str.length());
+    }
+
+    /**
+     * @return The number written between {@code start} and {@code end}, {@code 0} if empty, or {@code -1} if not a number
+     */
+    private static int parseInt(String str, int start, int end) {
+        if (start < 0 || end < start) { return -1; }
+        if (start == end) { return 0; }
+
+        try {
+            return Integer.parseInt(str.substring(start, end).trim());
+        }
+        catch(NumberFormatException e) {
+            return -1;
+        }
+    }
+
+}
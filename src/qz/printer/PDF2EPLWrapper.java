@@ -18,10 +18,14 @@ import org.slf4j.LoggerFactory;
 import qz.common.ByteArrayBuilder;
 import qz.exception.InvalidRawImageException;
 
-import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
 
 /**
  * Abstract wrapper for pdf to be printed with thermal printers.
@@ -29,26 +33,32 @@ import java.nio.charset.Charset;
  * @author Yao Chunlin
  */
 @SuppressWarnings("UnusedDeclaration") //Library class
-public class PDF2EPLWrapper {
+public class PDF2EPLWrapper implements Closeable {
 
 
-    public void setCropType(CropType cropType) {
+    public void setCropType(ImageWrapper.CropType cropType) {
         this.cropType = cropType;
     }
 
-    public enum CropType {
-        TOP, BOTTOM, NONE, BOTH;
-    }
     private static final Logger log = LoggerFactory.getLogger(PDF2EPLWrapper.class);
+
+    // Pages rendered or waiting to be written for each rendering thread, bounding the memory held by out of order pages
+    private static final int PAGES_PER_THREAD = 2;
+
     private final LanguageType languageType;
     private final PDDocument pdfdoc;
+    private final Callable<PDDocument> loader;
     private int dpi;
     private Charset charset = Charset.defaultCharset();
     private int xPos = 0;   // X coordinate used for EPL2, CPCL.  Irrelevant for ZPLII, ESC/P, etc
     private int yPos = 0;   // Y coordinate used for EPL2, CPCL.  Irrelevant for ZPLII, ESC/P, etc
     private int dotDensity = 32;  // Generally 32 = Single (normal) 33 = Double (higher res) for ESCP.  Irrelevant for all other languages.
     private ByteArrayBuilder byteBuffer = new ByteArrayBuilder();
-    private CropType cropType = CropType.NONE;
+    private ImageWrapper.CropType cropType = ImageWrapper.CropType.NONE;
+    private ImageWrapper.Compression compression = ImageWrapper.Compression.NONE;  // Used for ZPL only
+    private ImageWrapper.EscPosMode escPosMode = ImageWrapper.EscPosMode.SLICE;  // Used for ESC/POS only
+    private boolean binaryGraphics = false;  // Used for CPCL only
+    private ImageType renderType = ImageType.GRAY;
     /**
      * Creates a new
      * <code>PDF2EPLWrapper</code> from a
@@ -57,7 +67,20 @@ public class PDF2EPLWrapper {
      * @param pdfdoc The PDF document to convert for thermal printing
      */
     public PDF2EPLWrapper(PDDocument pdfdoc, LanguageType languageType) {
+        this(pdfdoc, null, languageType);
+    }
+
+    /**
+     * Creates a new
+     * <code>PDF2EPLWrapper</code> which renders pages on several threads.
+     * PDFBox documents can't be shared between threads, so each thread renders from its own copy of the document.
+     *
+     * @param pdfdoc The PDF document to convert for thermal printing
+     * @param loader Loads another copy of {@code pdfdoc}, or {@code null} to render every page from {@code pdfdoc} in turn
+     */
+    public PDF2EPLWrapper(PDDocument pdfdoc, Callable<PDDocument> loader, LanguageType languageType) {
         this.pdfdoc = pdfdoc;
+        this.loader = loader;
         this.languageType = languageType;
         log.info("Loading PDF document with {} pages", pdfdoc.getNumberOfPages());
 
@@ -72,81 +95,124 @@ public class PDF2EPLWrapper {
      */
     public byte[] getImageCommand(JSONObject opt) throws InvalidRawImageException, IOException {
         getByteBuffer().clear();
-        int numberOfPages = pdfdoc.getNumberOfPages();
-        PDFRenderer pdfRenderer = new PDFRenderer(pdfdoc);
-        for (int pageIndex = 0; pageIndex < numberOfPages; pageIndex ++) {
-            BufferedImage bim = pdfRenderer.renderImageWithDPI(pageIndex, dpi, ImageType.RGB);
-            bim = getCroppedImage(bim, cropType);
-            getByteBuffer().append(getImageWrapper(bim, pageIndex).getImageCommand(opt));
-        }
+        writeImageCommand(opt, getByteBuffer().getOutputStream());
         return getByteBuffer().getByteArray();
     }
 
-    public BufferedImage getCroppedImage(BufferedImage source, CropType cropType) {
-        if (cropType == CropType.NONE) {
-            return source;
-        }
-        // Get our top-left pixel color as our "baseline" for cropping
-        int baseColor = Color.white.getRGB();
-
-        int width = source.getWidth();
-        int height = source.getHeight();
-
-        int topY = 0, bottomY = height - 1;
-        if(cropType == CropType.TOP || cropType == CropType.BOTH) {
-            for(int y=0; y<height; y++) {
-                boolean blankRow = true;
-                for(int x=0; x<width; x++) {
-                    if (baseColor != source.getRGB(x, y)) {
-                        blankRow = false;
-                        break;
-                    }
-                }
-                if(blankRow == true) {
-                    continue;
-                } else {
-                    topY = y;
-                    break;
-                }
+    /**
+     * Writes the commands to print each page to {@code out} in page order, as soon as it is rendered and encoded
+     */
+    public void writeImageCommand(JSONObject opt, OutputStream out) throws InvalidRawImageException, IOException {
+        int numberOfPages = pdfdoc.getNumberOfPages();
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), numberOfPages);
+
+        if (loader == null || threads < 2) {
+            PDFRenderer pdfRenderer = new PDFRenderer(pdfdoc);
+            for (int pageIndex = 0; pageIndex < numberOfPages; pageIndex ++) {
+                BufferedImage bim = pdfRenderer.renderImageWithDPI(pageIndex, dpi, getRenderType());
+                getImageWrapper(bim, pageIndex).writeImageCommand(opt, out);
             }
+        } else {
+            writePagesInParallel(opt, out, numberOfPages, threads);
         }
+    }
 
-        if(cropType == CropType.BOTTOM || cropType == CropType.BOTH) {
-            for(int y=height-1; y>=0; y--) {
-                boolean blankRow = true;
-                for(int x=0; x<width; x++) {
-                    if (baseColor != source.getRGB(x, y)) {
-                        blankRow = false;
-                        break;
-                    }
-                }
-                if(blankRow == true) {
-                    continue;
-                } else {
-                    bottomY = y;
-                    break;
+    /**
+     * Renders and encodes pages on {@code threads} threads, writing each to {@code out} once every page before it has been written.
+     * Pages are only started while fewer than {@link #PAGES_PER_THREAD} per thread are waiting to be written,
+     * so a slow page holds back the rendering of later pages rather than letting them pile up in memory.
+     */
+    private void writePagesInParallel(final JSONObject opt, OutputStream out, int numberOfPages, int threads) throws InvalidRawImageException, IOException {
+        log.debug("Rendering {} pages on {} threads", numberOfPages, threads);
+
+        // documents not being rendered from, each only ever used by one thread at a time
+        final BlockingQueue<PDDocument> idle = new LinkedBlockingQueue<>();
+        final List<PDDocument> loaded = new ArrayList<>();
+        idle.add(pdfdoc);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<byte[]>> pages = new ArrayList<>(numberOfPages);
+        try {
+            int inFlight = threads * PAGES_PER_THREAD;
+            for(int pageIndex = 0; pageIndex < numberOfPages; pageIndex++) {
+                while(pages.size() < numberOfPages && pages.size() < pageIndex + inFlight) {
+                    final int page = pages.size();
+                    pages.add(pool.submit(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() throws Exception {
+                            PDDocument doc = idle.poll();
+                            if (doc == null) {
+                                doc = loader.call();
+                                synchronized(loaded) { loaded.add(doc); }
+                            }
+
+                            try {
+                                BufferedImage bim = new PDFRenderer(doc).renderImageWithDPI(page, dpi, getRenderType());
+                                return getImageWrapper(bim, page).getImageCommand(opt);
+                            }
+                            finally {
+                                idle.add(doc);
+                            }
+                        }
+                    }));
                 }
+
+                out.write(getPage(pages.get(pageIndex)));
+                pages.set(pageIndex, null);
             }
         }
+        finally {
+            pool.shutdownNow();
+            try {
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            catch(InterruptedException ignore) {
+                Thread.currentThread().interrupt();
+            }
 
+            for(PDDocument doc : loaded) {
+                doc.close();
+            }
+        }
+    }
 
-        //BufferedImage destination = new BufferedImage( width,
-        //                                               (bottomY - topY + 1), BufferedImage.TYPE_INT_ARGB);
-        BufferedImage destination = source.getSubimage(0, topY, width, (bottomY-topY + 1));
-
-        //destination.getGraphics().drawImage(source, 0, 0,
-        //                                    destination.getWidth(), destination.getHeight() ,
-        //                                    0, topY, width - 1, bottomY, null);
+    private static byte[] getPage(Future<byte[]> page) throws InvalidRawImageException, IOException {
+        try {
+            return page.get();
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while rendering PDF", e);
+        }
+        catch(ExecutionException e) {
+            if (e.getCause() instanceof InvalidRawImageException) { throw (InvalidRawImageException)e.getCause(); }
+            if (e.getCause() instanceof IOException) { throw (IOException)e.getCause(); }
+            if (e.getCause() instanceof RuntimeException) { throw (RuntimeException)e.getCause(); }
+            throw new IOException(e.getCause());
+        }
+    }
 
-        return destination;
+    /**
+     * Pages are rendered straight to the depth the printer needs, only Evolis ribbons are made from the colors of the page
+     */
+    private ImageType getRenderType() {
+        return languageType == LanguageType.EVOLIS? ImageType.RGB:renderType;
     }
 
     private ImageWrapper getImageWrapper(BufferedImage img, int pageIndex) {
         ImageWrapper iw = new ImageWrapper(img, languageType);
         iw.setCharset(charset);
+        iw.setCropType(cropType);
 
         //ESCP only
         iw.setDotDensity(dotDensity);
+        iw.setEscPosMode(escPosMode);
+
+        //ZPL only
+        iw.setCompression(compression);
+
+        //CPCL only
+        iw.setBinaryGraphics(binaryGraphics);
 
         //EPL only
         iw.setxPos(xPos);
@@ -157,6 +223,18 @@ public class PDF2EPLWrapper {
         return iw;
     }
 
+    public int getPageCount() {
+        return pdfdoc.getNumberOfPages();
+    }
+
+    /**
+     * Closes the PDF document, once no more pages will be printed from it
+     */
+    @Override
+    public void close() throws IOException {
+        pdfdoc.close();
+    }
+
     /**
      * buffer
      *
@@ -182,6 +260,26 @@ public class PDF2EPLWrapper {
         this.yPos = yPos;
     }
 
+    public void setCompression(ImageWrapper.Compression compression) {
+        this.compression = compression;
+    }
+
+    public void setEscPosMode(ImageWrapper.EscPosMode escPosMode) {
+        this.escPosMode = escPosMode;
+    }
+
+    public void setBinaryGraphics(boolean binaryGraphics) {
+        this.binaryGraphics = binaryGraphics;
+    }
+
+    /**
+     * Sets the image type pages are rendered to. {@code GRAY} keeps the shading of the page for the luma threshold,
+     * {@code BINARY} lets the renderer decide each dot and is the smallest and fastest to convert.
+     */
+    public void setRenderType(ImageType renderType) {
+        this.renderType = renderType;
+    }
+
     public void setDPI(int dpi) {
         this.dpi = dpi;
     }
@@ -0,0 +1,317 @@
+package qz.printer;
+
+import org.apache.pdfbox.cos.*;
+import org.apache.pdfbox.pdmodel.DefaultResourceCache;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qz.ws.PrintSocketServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Resource cache of a single document which shares parsed fonts and ICC color spaces with every other document
+ * loaded through {@link PDFSource}, so documents made from the same template don't parse the same fonts over again.
+ * <p/>
+ * Shared resources are matched on a hash of their dictionaries and streams, and are lent to one document at a time,
+ * since PDFBox fonts keep caches that aren't safe to use from several threads. Lent resources go back to the shared pool
+ * on {@link #release()}, once the document is closed. The pool is bounded by the size of the streams of the idle copies
+ * it holds, each copy counted in full, set in MB by {@code pdf.cacheLimit} in the tray properties or the {@code pdfCacheLimit} system property.
+ * <p/>
+ * Type 3 fonts draw their glyphs from content streams of their own document, so they are only cached per document.
+ */
+public class PDFResourceCache extends DefaultResourceCache {
+
+    private static final Logger log = LoggerFactory.getLogger(PDFResourceCache.class);
+
+    // Size of the shared resources, in MB
+    private static final long DEFAULT_CACHE_LIMIT = 32;
+    // Idle copies of each resource kept, enough for every rendering thread to have its own
+    private static final int MAX_IDLE = Math.max(2, Runtime.getRuntime().availableProcessors());
+    // Size counted for each resource on top of its streams, so resources without any are still bounded
+    private static final long ENTRY_WEIGHT = 4096;
+
+    private static final LinkedHashMap<ByteBuffer,Shared> pool = new LinkedHashMap<>(16, 0.75f, true);
+    private static long poolWeight;
+    private static long hits;
+    private static long misses;
+    private static long evictions;
+    private static long limit = -1;
+
+    private Map<COSObject,Lent> lent = new HashMap<>();
+    private Map<COSObject,Lent> pending = new HashMap<>();
+
+
+    @Override
+    public PDFont getFont(COSObject indirect) throws IOException {
+        Object resource = borrow(indirect, isShareableFont(indirect.getObject()));
+        if (resource != null) {
+            return (PDFont)resource;
+        }
+
+        return super.getFont(indirect);
+    }
+
+    @Override
+    public void put(COSObject indirect, PDFont font) throws IOException {
+        if (!keep(indirect, font)) {
+            super.put(indirect, font);
+        }
+    }
+
+    @Override
+    public PDColorSpace getColorSpace(COSObject indirect) throws IOException {
+        Object resource = borrow(indirect, isICCBased(indirect.getObject()));
+        if (resource != null) {
+            return (PDColorSpace)resource;
+        }
+
+        return super.getColorSpace(indirect);
+    }
+
+    @Override
+    public void put(COSObject indirect, PDColorSpace colorSpace) throws IOException {
+        if (!keep(indirect, colorSpace)) {
+            super.put(indirect, colorSpace);
+        }
+    }
+
+    /**
+     * @return A resource already lent to this document or an idle one from the pool, otherwise {@code null} to have it parsed
+     */
+    private Object borrow(COSObject indirect, boolean shareable) throws IOException {
+        Lent resource = lent.get(indirect);
+        if (resource != null) {
+            return resource.value;
+        }
+        if (!shareable) {
+            return null;
+        }
+
+        Hash hash = new Hash();
+        try {
+            hash.update(indirect.getObject());
+        }
+        catch(IOException e) {
+            log.debug("Unable to read resource {}, parsing it for this document only", indirect, e);
+            return null;
+        }
+        ByteBuffer key = hash.getKey();
+
+        Object value = take(key);
+        if (value != null) {
+            lent.put(indirect, new Lent(key, hash.weight, value));
+        } else {
+            pending.put(indirect, new Lent(key, hash.weight, null));
+        }
+
+        return value;
+    }
+
+    /**
+     * Holds a newly parsed resource until it can be given to the pool
+     *
+     * @return If the resource is shared
+     */
+    private boolean keep(COSObject indirect, Object value) {
+        Lent resource = pending.remove(indirect);
+        if (resource == null) {
+            return false;
+        }
+
+        lent.put(indirect, new Lent(resource.key, resource.weight, value));
+        return true;
+    }
+
+    /**
+     * Gives every shared resource used by this document back to the pool, which must only be done once the document is closed
+     */
+    public void release() {
+        for(Lent resource : lent.values()) {
+            give(resource);
+        }
+
+        lent.clear();
+        pending.clear();
+    }
+
+    private static boolean isShareableFont(COSBase base) {
+        return base instanceof COSDictionary && !COSName.TYPE3.equals(((COSDictionary)base).getCOSName(COSName.SUBTYPE));
+    }
+
+    private static boolean isICCBased(COSBase base) {
+        return base instanceof COSArray && ((COSArray)base).size() > 1 && COSName.ICCBASED.equals(((COSArray)base).getObject(0));
+    }
+
+    private static synchronized Object take(ByteBuffer key) {
+        Shared shared = pool.get(key);
+        if (shared != null && !shared.idle.isEmpty()) {
+            hits++;
+            poolWeight -= shared.weight;
+            return shared.idle.pop();
+        }
+
+        misses++;
+        return null;
+    }
+
+    private static synchronized void give(Lent resource) {
+        Shared shared = pool.get(resource.key);
+        if (shared == null) {
+            shared = new Shared(resource.weight);
+            pool.put(resource.key, shared);
+        }
+        if (shared.idle.size() < MAX_IDLE) {
+            shared.idle.push(resource.value);
+            poolWeight += shared.weight;
+        }
+
+        Iterator<Shared> eldest = pool.values().iterator();
+        while(poolWeight > getLimit() && eldest.hasNext()) {
+            Shared evicted = eldest.next();
+            poolWeight -= evicted.weight * evicted.idle.size();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    private static long getLimit() {
+        if (limit < 0) {
+            limit = PrintSocketServer.getTraySetting("pdf.cacheLimit", "pdfCacheLimit", DEFAULT_CACHE_LIMIT) * 1024 * 1024;
+        }
+
+        return limit;
+    }
+
+    /**
+     * @return Counts of the shared pool, for checking how often documents reuse resources
+     */
+    public static synchronized JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+
+        stats
+                .put("hits", hits)
+                .put("misses", misses)
+                .put("hitRate", hits + misses == 0? 0:(double)hits / (hits + misses))
+                .put("evictions", evictions)
+                .put("entries", pool.size())
+                .put("bytes", poolWeight);
+
+        return stats;
+    }
+
+
+    /** Copies of one resource waiting in the pool, each counting {@code weight} towards the size of the pool */
+    private static class Shared {
+        private final long weight;
+        private final Deque<Object> idle = new ArrayDeque<>();
+
+        Shared(long weight) {
+            this.weight = weight + ENTRY_WEIGHT;
+        }
+    }
+
+    /** Resource in use by this document, or waiting to be parsed if {@code value} is {@code null} */
+    private static class Lent {
+        private final ByteBuffer key;
+        private final long weight;
+        private final Object value;
+
+        Lent(ByteBuffer key, long weight, Object value) {
+            this.key = key;
+            this.weight = weight;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Digest of a resource and everything it references, which also resolves all of it so the resource
+     * no longer needs its document to be open once parsed
+     */
+    private static class Hash {
+        private MessageDigest digest;
+        private Set<COSBase> visited = Collections.newSetFromMap(new IdentityHashMap<COSBase,Boolean>());
+        private byte[] buffer = new byte[8192];
+        private long weight;
+
+        Hash() {
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            }
+            catch(NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void update(COSBase base) throws IOException {
+            if (base instanceof COSObject) {
+                base = ((COSObject)base).getObject();
+            }
+            if (base == null || base instanceof COSNull) {
+                digest.update((byte)'n');
+                return;
+            }
+            if (!visited.add(base)) {
+                digest.update((byte)'r');
+                return;
+            }
+
+            if (base instanceof COSDictionary) {
+                COSDictionary dict = (COSDictionary)base;
+                digest.update((byte)'d');
+                for(Map.Entry<COSName,COSBase> entry : dict.entrySet()) {
+                    update(entry.getKey());
+                    update(entry.getValue());
+                }
+                if (base instanceof COSStream) {
+                    updateStream((COSStream)base);
+                }
+            } else if (base instanceof COSArray) {
+                digest.update((byte)'a');
+                for(COSBase item : (COSArray)base) {
+                    update(item);
+                }
+                digest.update((byte)']');
+            } else if (base instanceof COSName) {
+                digest.update((byte)'/');
+                digest.update(((COSName)base).getName().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte)0);
+            } else if (base instanceof COSString) {
+                byte[] bytes = ((COSString)base).getBytes();
+                digest.update((byte)'s');
+                digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+                digest.update(bytes);
+            } else {
+                // numbers and booleans
+                digest.update((byte)'v');
+                digest.update(base.toString().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte)0);
+            }
+        }
+
+        private void updateStream(COSStream stream) throws IOException {
+            digest.update((byte)'S');
+            try(InputStream in = stream.createRawInputStream()) {
+                int read;
+                while((read = in.read(buffer)) >= 0) {
+                    digest.update(buffer, 0, read);
+                    weight += read;
+                }
+            }
+        }
+
+        ByteBuffer getKey() {
+            return ByteBuffer.wrap(digest.digest());
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+package qz.printer;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qz.utils.Base64Decoder;
+import qz.utils.FileUtilities;
+import qz.ws.PrintSocketServer;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A PDF to be printed, kept in a file so that documents are loaded from disk rather than from a copy on the heap.
+ * <p/>
+ * Local files are read in place, anything else is written to a temporary file that is removed on {@link #close()}.
+ * Documents are loaded with a mixed memory setting, so data parsed and decoded from a large document spills
+ * into a scratch file once it passes the heap limit, set in MB by {@code pdf.heapLimit} in the tray properties
+ * or the {@code pdfHeapLimit} system property. Fonts and color spaces are shared with other documents through a {@link PDFResourceCache}.
+ */
+public class PDFSource implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(PDFSource.class);
+
+    // Heap each loaded document may use before spilling into a scratch file, in MB
+    private static final long DEFAULT_HEAP_LIMIT = 64;
+
+    private File file;
+    private boolean temporary;
+    private final List<PDFResourceCache> caches = new ArrayList<>();
+
+
+    private PDFSource(File file, boolean temporary) {
+        this.file = file;
+        this.temporary = temporary;
+    }
+
+    /**
+     * Decodes {@code data} straight into a temporary file, without holding the decoded PDF in memory
+     */
+    public static PDFSource fromBase64(CharSequence data) throws IOException {
+        File tmp = File.createTempFile("qz_pdf_", ".pdf");
+        try(OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+            Base64Decoder.decode(data, out);
+        }
+        catch(IOException e) {
+            deleteFile(tmp);
+            throw e;
+        }
+
+        return new PDFSource(tmp, true);
+    }
+
+    /**
+     * Uses the file at {@code url} directly if it is local, otherwise downloads it into a temporary file
+     */
+    public static PDFSource fromUrl(String url) throws IOException {
+        File local = FileUtilities.getLocalFile(url);
+        if (local != null) {
+            return new PDFSource(local, false);
+        }
+
+        File tmp = File.createTempFile("qz_pdf_", ".pdf");
+        try(InputStream in = new URL(url).openStream()) {
+            Files.copy(in, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch(IOException e) {
+            deleteFile(tmp);
+            throw e;
+        }
+
+        return new PDFSource(tmp, true);
+    }
+
+    /**
+     * Loads a new document from this source, which may be called again for separate copies of the same document
+     */
+    public PDDocument load() throws IOException {
+        PDDocument doc = PDDocument.load(file, getMemoryUsageSetting());
+
+        PDFResourceCache cache = new PDFResourceCache();
+        doc.setResourceCache(cache);
+        synchronized(caches) {
+            caches.add(cache);
+        }
+
+        return doc;
+    }
+
+    public static MemoryUsageSetting getMemoryUsageSetting() {
+        return MemoryUsageSetting.setupMixed(getHeapLimit() * 1024 * 1024);
+    }
+
+    private static long getHeapLimit() {
+        return PrintSocketServer.getTraySetting("pdf.heapLimit", "pdfHeapLimit", DEFAULT_HEAP_LIMIT);
+    }
+
+    /**
+     * Removes the temporary file and releases the shared resources of loaded documents,
+     * once no more documents are loaded from it and all loaded documents are closed
+     */
+    @Override
+    public void close() {
+        synchronized(caches) {
+            for(PDFResourceCache cache : caches) {
+                cache.release();
+            }
+            caches.clear();
+        }
+
+        if (temporary) {
+            deleteFile(file);
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+}
@@ -66,6 +66,14 @@ public class PrintOptions {
         if (!configOpts.isNull("jobName")) {
             rawOptions.jobName = configOpts.optString("jobName", null);
         }
+        if (!configOpts.isNull("copyStrategy")) {
+            try {
+                rawOptions.copyStrategy = CopyStrategy.valueOf(configOpts.optString("copyStrategy").toUpperCase(Locale.ENGLISH));
+            }
+            catch(IllegalArgumentException e) {
+                warn("valid value", "copyStrategy", configOpts.opt("copyStrategy"));
+            }
+        }
 
         //check for pixel options
         if (!configOpts.isNull("colorType")) {
@@ -292,6 +300,7 @@ public class PrintOptions {
         private int perSpool = 1;               //Pages per spool
         private int copies = 1;                 //Job copies
         private String jobName = null;          //Job name
+        private CopyStrategy copyStrategy = CopyStrategy.RESEND; //How copies are produced
 
 
         public boolean isAltPrinting() {
@@ -321,6 +330,10 @@ public class PrintOptions {
         public String getJobName(String defaultVal) {
             return jobName == null || jobName.isEmpty()? defaultVal:jobName;
         }
+
+        public CopyStrategy getCopyStrategy() {
+            return copyStrategy;
+        }
     }
 
     /** Pixel printing options */
@@ -550,6 +563,12 @@ public class PrintOptions {
         }
     }
 
+    /** Raw copies option */
+    public enum CopyStrategy {
+        RESEND, //Send the whole job again for each copy
+        NATIVE  //Rewrite the quantity commands of the job's language so the printer makes the copies
+    }
+
     /** Pixel page color option */
     public enum ColorType {
         COLOR(Chromaticity.COLOR),
@@ -0,0 +1,261 @@
+package qz.printer;
+
+import org.codehaus.jettison.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qz.common.ByteArrayBuilder;
+import qz.exception.InvalidRawImageException;
+import qz.utils.FileUtilities;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A piece of a raw print job, either held in memory or read from its source only as it is sent.
+ * <p/>
+ * Raw jobs are built as an ordered list of segments so that large sources, such as local files,
+ * can be handed to the printer without ever being copied onto the heap.
+ */
+public abstract class RawSegment {
+
+    private static final Logger log = LoggerFactory.getLogger(RawSegment.class);
+
+    /**
+     * @return Number of bytes this segment will send, or {@code -1} if not known until it is sent
+     */
+    public abstract long length() throws IOException;
+
+    /**
+     * Sends this segment to {@code out}, which is left open.
+     *
+     * @param out Channel of the socket or file being printed to
+     */
+    public abstract void writeTo(WritableByteChannel out) throws IOException;
+
+    /**
+     * @return A new stream over this segment, for print services which read the data themselves
+     */
+    public abstract InputStream openStream() throws IOException;
+
+    /**
+     * Copies this segment into {@code builder}, for jobs that must be searched or split before sending.
+     *
+     * @param builder Buffer to append to
+     */
+    public abstract void appendTo(ByteArrayBuilder builder) throws IOException;
+
+    /** Segment of commands already held in memory */
+    public static class Bytes extends RawSegment {
+        private ByteArrayBuilder bytes;
+
+        public Bytes(ByteArrayBuilder bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public long length() {
+            return bytes.getLength();
+        }
+
+        @Override
+        public void writeTo(WritableByteChannel out) throws IOException {
+            bytes.writeTo(Channels.newOutputStream(out));
+        }
+
+        @Override
+        public InputStream openStream() {
+            return bytes.getInputStream();
+        }
+
+        @Override
+        public void appendTo(ByteArrayBuilder builder) {
+            builder.append(bytes);
+        }
+    }
+
+    /** Segment backed by a file on the local file system, streamed by the OS when sent */
+    public static class LocalFile extends RawSegment {
+        private File file;
+
+        public LocalFile(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public long length() {
+            return file.length();
+        }
+
+        @Override
+        public void writeTo(WritableByteChannel out) throws IOException {
+            try(FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = in.size();
+                long position = 0;
+                while(position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+            }
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            return new FileInputStream(file);
+        }
+
+        @Override
+        public void appendTo(ByteArrayBuilder builder) throws IOException {
+            try(FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                MappedByteBuffer mapped = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+                builder.append(mapped);
+            }
+        }
+    }
+
+    /** Segment generated as it is sent, which print services reading a stream get through a pipe fed on its own thread */
+    abstract static class PipedSegment extends RawSegment {
+
+        /**
+         * Produces the data of this segment, for {@link #openPipe(String)}
+         */
+        abstract void write(OutputStream out) throws IOException;
+
+        /**
+         * @return A stream over {@link #write(OutputStream)}, which is run on its own thread so the reader never has to wait for all of it
+         */
+        InputStream openPipe(final String name) throws IOException {
+            final PipedOutputStream pipeOut = new PipedOutputStream();
+            final FailablePipe pipeIn = new FailablePipe(pipeOut);
+
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        write(pipeOut);
+                    }
+                    catch(Throwable t) {
+                        //any failure, checked or not, must reach the reader so a partial job isn't sent as if complete
+                        log.error("Failed to produce data for {}", name, t);
+                        pipeIn.failure = t;
+                    }
+                    finally {
+                        try { pipeOut.close(); } catch(IOException ignore) {}
+                    }
+                }
+            }, name);
+            writer.setDaemon(true);
+            writer.start();
+
+            return pipeIn;
+        }
+    }
+
+    /** Segment decoded from the base64 value of a tag in an XML file, which is streamed every time it is sent */
+    public static class XmlData extends PipedSegment {
+        private String url;
+        private String dataTag;
+
+        public XmlData(String url, String dataTag) {
+            this.url = url;
+            this.dataTag = dataTag;
+        }
+
+        @Override
+        public long length() {
+            return -1;
+        }
+
+        @Override
+        public void writeTo(WritableByteChannel out) throws IOException {
+            FileUtilities.decodeXMLFile(url, dataTag, Channels.newOutputStream(out));
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            return openPipe("xml-data-reader");
+        }
+
+        @Override
+        void write(OutputStream out) throws IOException {
+            FileUtilities.decodeXMLFile(url, dataTag, out);
+        }
+
+        @Override
+        public void appendTo(ByteArrayBuilder builder) throws IOException {
+            FileUtilities.decodeXMLFile(url, dataTag, builder.getOutputStream());
+        }
+    }
+
+    /** Segment of pages of a PDF, rendered and encoded for the printer each time it is sent so pages go out as soon as they are ready */
+    public static class PdfPages extends PipedSegment {
+        private PDF2EPLWrapper pdf;
+        private JSONObject opt;
+
+        public PdfPages(PDF2EPLWrapper pdf, JSONObject opt) {
+            this.pdf = pdf;
+            this.opt = opt;
+        }
+
+        @Override
+        public long length() {
+            return -1;
+        }
+
+        @Override
+        public void writeTo(WritableByteChannel out) throws IOException {
+            write(Channels.newOutputStream(out));
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            return openPipe("pdf-page-renderer");
+        }
+
+        @Override
+        public void appendTo(ByteArrayBuilder builder) throws IOException {
+            write(builder.getOutputStream());
+        }
+
+        @Override
+        void write(OutputStream out) throws IOException {
+            try {
+                pdf.writeImageCommand(opt, out);
+            }
+            catch(InvalidRawImageException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+    }
+
+    /** Pipe which fails at its end, rather than appearing complete, if the writing side failed */
+    private static class FailablePipe extends PipedInputStream {
+        private volatile Throwable failure;
+
+        FailablePipe(PipedOutputStream src) throws IOException {
+            super(src, 64 * 1024);
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            int b = super.read();
+            if (b < 0) { checkFailure(); }
+            return b;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n < 0) { checkFailure(); }
+            return n;
+        }
+
+        private void checkFailure() throws IOException {
+            if (failure instanceof IOException) { throw (IOException)failure; }
+            if (failure != null) { throw new IOException("Failed to produce data: " + failure, failure); }
+        }
+    }
+
+}
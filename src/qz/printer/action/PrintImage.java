@@ -19,11 +19,11 @@ import org.slf4j.LoggerFactory;
 import qz.common.Constants;
 import qz.printer.PrintOptions;
 import qz.printer.PrintOutput;
+import qz.utils.ImageUtilities;
 import qz.utils.PrintingUtilities;
 import qz.utils.SystemUtilities;
 
 import javax.imageio.IIOException;
-import javax.imageio.ImageIO;
 import javax.print.attribute.PrintRequestAttributeSet;
 import javax.print.attribute.standard.OrientationRequested;
 import java.awt.*;
@@ -69,7 +69,22 @@ public class PrintImage extends PrintPixel implements PrintProcessor, Printable
 
     @Override
     public void parseData(JSONArray printData, PrintOptions options) throws JSONException, UnsupportedOperationException {
-        dpiScale = (options.getPixelOptions().getDensity() * options.getPixelOptions().getUnits().as1Inch()) / 72.0;
+        PrintOptions.Pixel pxlOpts = options.getPixelOptions();
+        dpiScale = (pxlOpts.getDensity() * pxlOpts.getUnits().as1Inch()) / 72.0;
+
+        //when the page size is known, decode no more of each image than will be printed
+        Dimension pagePixels = getPagePixels(pxlOpts);
+        Rectangle region = null;
+        int targetWidth = -1, targetHeight = -1;
+        if (pagePixels != null) {
+            if (pxlOpts.isScaleContent()) {
+                targetWidth = pagePixels.width;
+                targetHeight = pagePixels.height;
+            } else if (pxlOpts.getRotation() % 360 == 0 && pxlOpts.getOrientation() != PrintOptions.Orientation.REVERSE_LANDSCAPE) {
+                //unscaled images are drawn from the top left corner, anything past the page is cut off
+                region = new Rectangle(pagePixels);
+            }
+        }
 
         for(int i = 0; i < printData.length(); i++) {
             JSONObject data = printData.getJSONObject(i);
@@ -79,9 +94,9 @@ public class PrintImage extends PrintPixel implements PrintProcessor, Printable
             try {
                 BufferedImage bi;
                 if (format == PrintingUtilities.Format.BASE64) {
-                    bi = ImageIO.read(new ByteArrayInputStream(Base64.decode(data.getString("data"))));
+                    bi = ImageUtilities.readImage(new ByteArrayInputStream(Base64.decode(data.getString("data"))), region, targetWidth, targetHeight);
                 } else {
-                    bi = ImageIO.read(new URL(data.getString("data")));
+                    bi = ImageUtilities.readImage(new URL(data.getString("data")), region, targetWidth, targetHeight);
                 }
 
                 images.add(bi);
@@ -101,6 +116,30 @@ public class PrintImage extends PrintPixel implements PrintProcessor, Printable
         log.debug("Parsed {} images for printing", images.size());
     }
 
+    /**
+     * @return Size of the page in pixels at the print density, turned to match the orientation and rotation of the image,
+     * or {@code null} if the page size, density or a rotation other than a quarter turn leave it unknown
+     */
+    private Dimension getPagePixels(PrintOptions.Pixel pxlOpts) {
+        PrintOptions.Size size = pxlOpts.getSize();
+        if (size == null || size.getWidth() <= 0 || size.getHeight() <= 0 || pxlOpts.getDensity() <= 0 || pxlOpts.getRotation() % 90 != 0) {
+            return null;
+        }
+
+        //size and density are in the same units
+        int width = (int)Math.ceil(size.getWidth() * pxlOpts.getDensity());
+        int height = (int)Math.ceil(size.getHeight() * pxlOpts.getDensity());
+
+        boolean landscape = pxlOpts.getOrientation() == PrintOptions.Orientation.LANDSCAPE
+                || pxlOpts.getOrientation() == PrintOptions.Orientation.REVERSE_LANDSCAPE;
+        boolean quarterTurn = pxlOpts.getRotation() % 180 != 0;
+        if (landscape != quarterTurn) {
+            return new Dimension(height, width);
+        }
+
+        return new Dimension(width, height);
+    }
+
     @Override
     public void print(PrintOutput output, PrintOptions options) throws PrinterException {
         if (images.isEmpty()) {
@@ -1,9 +1,7 @@
 package qz.printer.action;
 
 import com.github.zafarkhaja.semver.Version;
-import net.sourceforge.iharder.Base64;
 import org.apache.pdfbox.io.IOUtils;
-import org.apache.pdfbox.multipdf.Splitter;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDPageContentStream;
@@ -17,6 +15,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qz.common.Constants;
 import qz.printer.BookBundle;
+import qz.printer.PDFSource;
 import qz.printer.PDFWrapper;
 import qz.printer.PrintOptions;
 import qz.printer.PrintOutput;
@@ -31,7 +30,6 @@ import java.awt.print.Paper;
 import java.awt.print.PrinterException;
 import java.awt.print.PrinterJob;
 import java.io.*;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
@@ -40,14 +38,15 @@ public class PrintPDF extends PrintPixel implements PrintProcessor {
 
     private static final Logger log = LoggerFactory.getLogger(PrintPDF.class);
 
-    private List<PDDocument> originals;
-    private List<PDDocument> printables;
-    private Splitter splitter = new Splitter();
+    private List<PDDocument> documents;
+    private List<List<Integer>> pageIndices;  //pages of each document to print, in order
+    private List<PDFSource> sources;
 
 
     public PrintPDF() {
-        originals = new ArrayList<>();
-        printables = new ArrayList<>();
+        documents = new ArrayList<>();
+        pageIndices = new ArrayList<>();
+        sources = new ArrayList<>();
     }
 
     @Override
@@ -63,15 +62,22 @@ public class PrintPDF extends PrintPixel implements PrintProcessor {
             PrintingUtilities.Format format = PrintingUtilities.Format.valueOf(data.optString("format", "FILE").toUpperCase(Locale.ENGLISH));
 
             try {
-                PDDocument doc;
+                PDFSource source;
                 if (format == PrintingUtilities.Format.BASE64) {
-                    doc = PDDocument.load(new ByteArrayInputStream(Base64.decode(data.getString("data"))));
+                    source = PDFSource.fromBase64(data.getString("data"));
                 } else {
-                    doc = PDDocument.load(new URL(data.getString("data")).openStream());
+                    source = PDFSource.fromUrl(data.getString("data"));
                 }
+                sources.add(source);
 
-                originals.add(doc);
-                printables.addAll(splitter.split(doc));
+                PDDocument doc = source.load();
+                documents.add(doc);
+
+                String ranges = null;
+                if (!data.isNull("options")) {
+                    ranges = data.getJSONObject("options").optString("pageRanges", null);
+                }
+                pageIndices.add(parsePageRanges(ranges, doc.getNumberOfPages()));
             }
             catch(FileNotFoundException e) {
                 throw new UnsupportedOperationException("PDF file specified could not be found.", e);
@@ -81,7 +87,45 @@ public class PrintPDF extends PrintPixel implements PrintProcessor {
             }
         }
 
-        log.debug("Parsed {} files for printing", printables.size());
+        log.debug("Parsed {} files for printing", documents.size());
+    }
+
+    /**
+     * Parses ranges of 1-based page numbers such as {@code "1-3,5,8-"} into the 0-based indices of the pages to print.
+     * Pages past the end of the document are ignored, and every page is printed if no ranges are given.
+     */
+    private static List<Integer> parsePageRanges(String ranges, int numberOfPages) {
+        List<Integer> indices = new ArrayList<>();
+        if (ranges == null || ranges.trim().isEmpty()) {
+            for(int i = 0; i < numberOfPages; i++) {
+                indices.add(i);
+            }
+
+            return indices;
+        }
+
+        for(String range : ranges.split(",")) {
+            String[] bounds = range.split("-", -1);
+            try {
+                int first = bounds[0].trim().isEmpty()? 1:Integer.parseInt(bounds[0].trim());
+                int last = first;
+                if (bounds.length > 1) {
+                    last = bounds[1].trim().isEmpty()? numberOfPages:Integer.parseInt(bounds[1].trim());
+                }
+                if (bounds.length > 2 || first < 1 || last < first) {
+                    throw new NumberFormatException();
+                }
+
+                for(int page = first; page <= Math.min(last, numberOfPages); page++) {
+                    indices.add(page - 1);
+                }
+            }
+            catch(NumberFormatException e) {
+                throw new UnsupportedOperationException(String.format("Invalid page range \"%s\"", range.trim()), e);
+            }
+        }
+
+        return indices;
     }
 
     @Override
@@ -96,7 +140,11 @@ public class PrintPDF extends PrintPixel implements PrintProcessor {
 
     @Override
     public void print(PrintOutput output, PrintOptions options) throws PrinterException {
-        if (printables.isEmpty()) {
+        int numberOfPages = 0;
+        for(List<Integer> pages : pageIndices) {
+            numberOfPages += pages.size();
+        }
+        if (numberOfPages == 0) {
             log.warn("Nothing to print");
             return;
         }
@@ -118,35 +166,19 @@ public class PrintPDF extends PrintPixel implements PrintProcessor {
 
         BookBundle bundle = new BookBundle();
 
-        for(PDDocument doc : printables) {
-            PageFormat page = job.getPageFormat(null);
-            applyDefaultSettings(pxlOpts, page);
+        for(int d = 0; d < documents.size(); d++) {
+            PDDocument doc = documents.get(d);
+            PDFWrapper wrapper = new PDFWrapper(doc, scale, false, (float)(pxlOpts.getDensity() * pxlOpts.getUnits().as1Inch()), false, pxlOpts.getOrientation(), hints);
 
-            for(PDPage pd : doc.getPages()) {
-                if (pxlOpts.getRotation() % 360 != 0) {
-                    rotatePage(doc, pd, pxlOpts.getRotation());
+            //pages are only prepared once, even if selected by more than one range
+            PageFormat[] formats = new PageFormat[doc.getNumberOfPages()];
+            for(int pageIndex : pageIndices.get(d)) {
+                if (formats[pageIndex] == null) {
+                    formats[pageIndex] = preparePage(doc, doc.getPage(pageIndex), job, pxlOpts);
                 }
 
-                if (pxlOpts.getOrientation() == null) {
-                    PDRectangle bounds = pd.getBBox();
-                    if ((page.getImageableHeight() > page.getImageableWidth() && bounds.getWidth() > bounds.getHeight()) || (pd.getRotation() / 90) % 2 == 1) {
-                        log.info("Adjusting orientation to print landscape PDF source");
-                        page.setOrientation(PrintOptions.Orientation.LANDSCAPE.getAsFormat());
-                    }
-                } else if (pxlOpts.getOrientation() != PrintOptions.Orientation.PORTRAIT) {
-                    //flip imageable area dimensions when in landscape
-                    Paper repap = page.getPaper();
-                    repap.setImageableArea(repap.getImageableX(), repap.getImageableY(), repap.getImageableHeight(), repap.getImageableWidth());
-                    page.setPaper(repap);
-
-                    //reverse fix for OSX
-                    if (SystemUtilities.isMac() && pxlOpts.getOrientation() == PrintOptions.Orientation.REVERSE_LANDSCAPE) {
-                        pd.setRotation(pd.getRotation() + 180);
-                    }
-                }
+                bundle.appendPage(wrapper, formats[pageIndex], pageIndex);
             }
-
-            bundle.append(new PDFWrapper(doc, scale, false, (float)(pxlOpts.getDensity() * pxlOpts.getUnits().as1Inch()), false, pxlOpts.getOrientation(), hints), page, doc.getNumberOfPages());
         }
 
         job.setJobName(pxlOpts.getJobName(Constants.PDF_PRINT));
@@ -155,6 +187,40 @@ public class PrintPDF extends PrintPixel implements PrintProcessor {
         printCopies(output, pxlOpts, job, attributes);
     }
 
+    /**
+     * Applies the rotation and orientation options to a single page of {@code doc}
+     *
+     * @return The page format the page is printed with
+     */
+    private PageFormat preparePage(PDDocument doc, PDPage pd, PrinterJob job, PrintOptions.Pixel pxlOpts) {
+        PageFormat page = job.getPageFormat(null);
+        applyDefaultSettings(pxlOpts, page);
+
+        if (pxlOpts.getRotation() % 360 != 0) {
+            rotatePage(doc, pd, pxlOpts.getRotation());
+        }
+
+        if (pxlOpts.getOrientation() == null) {
+            PDRectangle bounds = pd.getBBox();
+            if ((page.getImageableHeight() > page.getImageableWidth() && bounds.getWidth() > bounds.getHeight()) || (pd.getRotation() / 90) % 2 == 1) {
+                log.info("Adjusting orientation to print landscape PDF source");
+                page.setOrientation(PrintOptions.Orientation.LANDSCAPE.getAsFormat());
+            }
+        } else if (pxlOpts.getOrientation() != PrintOptions.Orientation.PORTRAIT) {
+            //flip imageable area dimensions when in landscape
+            Paper repap = page.getPaper();
+            repap.setImageableArea(repap.getImageableX(), repap.getImageableY(), repap.getImageableHeight(), repap.getImageableWidth());
+            page.setPaper(repap);
+
+            //reverse fix for OSX
+            if (SystemUtilities.isMac() && pxlOpts.getOrientation() == PrintOptions.Orientation.REVERSE_LANDSCAPE) {
+                pd.setRotation(pd.getRotation() + 180);
+            }
+        }
+
+        return page;
+    }
+
     private void rotatePage(PDDocument doc, PDPage page, double rotation) {
         try {
             //copy page to object for manipulation
@@ -187,14 +253,15 @@ public class PrintPDF extends PrintPixel implements PrintProcessor {
 
     @Override
     public void cleanup() {
-        for(PDDocument doc : printables) {
+        for(PDDocument doc : documents) {
             try { doc.close(); } catch(IOException ignore) {}
         }
-        for(PDDocument doc : originals) {
-            try { doc.close(); } catch(IOException ignore) {}
+        for(PDFSource source : sources) {
+            source.close();
         }
 
-        originals.clear();
-        printables.clear();
+        documents.clear();
+        pageIndices.clear();
+        sources.clear();
     }
 }
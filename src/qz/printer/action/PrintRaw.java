@@ -11,8 +11,8 @@ package qz.printer.action;
 
 import com.ibm.icu.text.ArabicShapingException;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.ssl.Base64;
 import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.rendering.ImageType;
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
@@ -20,12 +20,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qz.common.ByteArrayBuilder;
 import qz.common.Constants;
+import qz.exception.InvalidRawImageException;
 import qz.exception.NullCommandException;
 import qz.exception.NullPrintServiceException;
 import qz.printer.*;
+import qz.printer.image.EscPosEncoder;
+import qz.printer.image.ImageEncoders;
 import qz.utils.*;
 
-import javax.imageio.ImageIO;
 import javax.print.*;
 import javax.print.attribute.HashPrintRequestAttributeSet;
 import javax.print.attribute.PrintRequestAttributeSet;
@@ -34,12 +36,16 @@ import javax.print.event.PrintJobEvent;
 import javax.print.event.PrintJobListener;
 import java.awt.image.BufferedImage;
 import java.io.*;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.URL;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Locale;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -53,12 +59,17 @@ public class PrintRaw implements PrintProcessor {
     private static final Logger log = LoggerFactory.getLogger(PrintRaw.class);
 
     private ByteArrayBuilder commands;
+    private List<RawSegment> segments;
+    private List<Closeable> documents;  //PDFs and their sources, closed once the job is done
 
     private String encoding = null;
+    private CharsetEncoder encoder = null;  //cached for the current job, as processors are only used by one thread at a time
 
 
     public PrintRaw() {
         commands = new ByteArrayBuilder();
+        segments = new ArrayList<>();
+        documents = new ArrayList<>();
     }
 
     @Override
@@ -66,22 +77,45 @@ public class PrintRaw implements PrintProcessor {
         return PrintingUtilities.Type.RAW;
     }
 
-    private byte[] getBytes(String str, String encoding) throws ArabicShapingException, IOException {
-        switch(encoding.toLowerCase()) {
+    private static boolean isIBM864(String encoding) {
+        switch(encoding.toLowerCase(Locale.ENGLISH)) {
             case "ibm864":
             case "cp864":
             case "csibm864":
             case "864":
             case "ibm-864":
-                return ArabicConversionUtilities.convertToIBM864(str);
+                return true;
             default:
-                return str.getBytes(encoding);
+                return false;
+        }
+    }
+
+    /**
+     * Encodes {@code str} into the pending commands, looking up the job's charset only on first use
+     */
+    private void appendPlain(String str) throws ArabicShapingException, IOException {
+        if (isIBM864(encoding)) {
+            if (encoder == null) { encoder = ArabicConversionUtilities.newIBM864Encoder(); }
+            ArabicConversionUtilities.appendIBM864(commands, str, encoder);
+        } else {
+            if (encoder == null) {
+                //same replacement behavior as String.getBytes
+                encoder = Charset.forName(encoding).newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            }
+            commands.append(CharBuffer.wrap(str), encoder);
         }
     }
 
 
     @Override
     public void parseData(JSONArray printData, PrintOptions options) throws JSONException, UnsupportedOperationException {
+        PrintOptions.Raw rawOpts = options.getRawOptions();
+        encoding = rawOpts.getEncoding();
+        if (encoding == null || encoding.isEmpty()) { encoding = Charset.defaultCharset().name(); }
+        encoder = null;
+
         for(int i = 0; i < printData.length(); i++) {
             JSONObject data = printData.optJSONObject(i);
             if (data == null) {
@@ -95,34 +129,54 @@ public class PrintRaw implements PrintProcessor {
             if (opt == null) { opt = new JSONObject(); }
 
             PrintingUtilities.Format format = PrintingUtilities.Format.valueOf(data.optString("format", "PLAIN").toUpperCase(Locale.ENGLISH));
-            PrintOptions.Raw rawOpts = options.getRawOptions();
-
-            encoding = rawOpts.getEncoding();
-            if (encoding == null || encoding.isEmpty()) { encoding = Charset.defaultCharset().name(); }
 
             try {
                 switch(format) {
                     case BASE64:
-                        commands.append(Base64.decodeBase64(cmd));
+                        Base64Decoder.decode(cmd, commands);
                         break;
                     case FILE:
-                        commands.append(FileUtilities.readRawFile(cmd));
+                        File local = FileUtilities.getLocalFile(cmd);
+                        if (local != null) {
+                            //sent straight from disk when printing
+                            addSegment(new RawSegment.LocalFile(local));
+                        } else {
+                            commands.append(FileUtilities.readRawFile(cmd));
+                        }
                         break;
                     case IMAGE:
-                        commands.append(getImageWrapper(cmd, opt).getImageCommand(opt));
+                        if (opt.has("key")) {
+                            checkGraphicsKeyOptions(opt);
+                        }
+
+                        //ESC/POS graphics only, "store" defaults to true, which rewrites the NV graphics memory on every job.
+                        //NV memory takes a limited number of writes, so repeat jobs should recall the key with "store" false.
+                        if (opt.has("key") && !opt.optBoolean("store", true)) {
+                            //graphics already stored on the printer, so the image itself isn't needed
+                            commands.append(EscPosEncoder.getStoredGraphicCommand(opt.getString("key")));
+                        } else {
+                            getImageWrapper(cmd, opt).writeImageCommand(opt, commands.getOutputStream());
+                        }
                         break;
                     case HEX:
-                        commands.append(ByteUtilities.hexStringToByteArray(cmd));
+                        ByteUtilities.hexStringToByteArray(cmd, commands);
                         break;
                     case XML:
-                        commands.append(Base64.decodeBase64(FileUtilities.readXMLFile(cmd, opt.optString("xmlTag"))));
+                        //decoded straight from the file when printing
+                        addSegment(new RawSegment.XmlData(cmd, opt.optString("xmlTag")));
                         break;
                     case PDF:
-                        commands.append(getPDFWrapper(cmd, opt).getImageCommand(opt));
+                        LanguageType language = LanguageType.getType(opt.optString("language"));
+                        if (ImageEncoders.get(language) == null) {
+                            throw new InvalidRawImageException(language + " image conversion is not yet supported.");
+                        }
+
+                        //rendered page by page as the job is sent
+                        addSegment(new RawSegment.PdfPages(getPDFWrapper(cmd, opt), opt));
                         break;
                     case PLAIN:
                     default:
-                        commands.append(getBytes(cmd, encoding));
+                        appendPlain(cmd);
                         break;
                 }
             }
@@ -133,19 +187,31 @@ public class PrintRaw implements PrintProcessor {
     }
 
     private PDF2EPLWrapper getPDFWrapper(String cmd, JSONObject opt) throws IOException, JSONException {
-        PDDocument pdfdoc;
         if (cmd.startsWith("data:application/pdf") && cmd.contains(";base64,")) {
             String[] parts = cmd.split(";base64,");
             cmd = parts[parts.length - 1];
         }
 
-        if (Base64.isArrayByteBase64(cmd.getBytes())) {
-            pdfdoc = PDDocument.load(Base64.decodeBase64(cmd));
+        //kept on disk so each rendering thread can load its own copy of the document
+        final PDFSource source;
+        if (Base64Decoder.isBase64(cmd)) {
+            source = PDFSource.fromBase64(cmd);
         } else {
-            pdfdoc = PDDocument.load(new URL(cmd).openStream());
+            source = PDFSource.fromUrl(cmd);
         }
+        documents.add(source);
+
+        PDDocument pdfdoc = source.load();
+        Callable<PDDocument> loader = new Callable<PDDocument>() {
+            @Override
+            public PDDocument call() throws IOException {
+                return source.load();
+            }
+        };
 
-        PDF2EPLWrapper pdfWrapper = new PDF2EPLWrapper(pdfdoc, LanguageType.getType(opt.optString("language")));
+        PDF2EPLWrapper pdfWrapper = new PDF2EPLWrapper(pdfdoc, loader, LanguageType.getType(opt.optString("language")));
+        //closed before the source, so its file is no longer in use
+        documents.add(0, pdfWrapper);
         pdfWrapper.setCharset(Charset.forName(encoding));
 
         int dpi = opt.optInt("dpi", -1);
@@ -153,8 +219,9 @@ public class PrintRaw implements PrintProcessor {
             dpi = 300; //default
         }
         pdfWrapper.setDPI(dpi);
+        pdfWrapper.setRenderType(ImageType.valueOf(opt.optString("renderType", "GRAY").toUpperCase(Locale.ENGLISH)));
 
-        PDF2EPLWrapper.CropType cropType = PDF2EPLWrapper.CropType.valueOf(opt.optString("crop", "NONE").toUpperCase(Locale.ENGLISH));
+        ImageWrapper.CropType cropType = ImageWrapper.CropType.valueOf(opt.optString("crop", "NONE").toUpperCase(Locale.ENGLISH));
         pdfWrapper.setCropType(cropType);
         //ESCP only
         int density = opt.optInt("dotDensity", -1);
@@ -171,6 +238,13 @@ public class PrintRaw implements PrintProcessor {
             }
         }
         pdfWrapper.setDotDensity(density);
+        pdfWrapper.setEscPosMode(ImageWrapper.EscPosMode.valueOf(opt.optString("mode", "SLICE").toUpperCase(Locale.ENGLISH)));
+
+        //ZPL only
+        pdfWrapper.setCompression(ImageWrapper.Compression.valueOf(opt.optString("compression", "NONE").toUpperCase(Locale.ENGLISH)));
+
+        //CPCL only
+        pdfWrapper.setBinaryGraphics(opt.optBoolean("binary", false));
 
         //EPL only
         pdfWrapper.setxPos(opt.optInt("x", 0));
@@ -186,14 +260,20 @@ public class PrintRaw implements PrintProcessor {
             cmd = parts[parts.length - 1];
         }
 
-        if (Base64.isArrayByteBase64(cmd.getBytes())) {
-            buf = ImageIO.read(new ByteArrayInputStream(Base64.decodeBase64(cmd)));
+        //largest image in dots, images are decoded and scaled down to fit within it
+        int pageWidth = opt.optInt("pageWidth", -1);
+        int pageHeight = opt.optInt("pageHeight", -1);
+
+        if (Base64Decoder.isBase64(cmd)) {
+            buf = ImageUtilities.readImage(Base64Decoder.decode(cmd).getInputStream(), null, pageWidth, pageHeight);
         } else {
-            buf = ImageIO.read(new URL(cmd));
+            buf = ImageUtilities.readImage(new URL(cmd), null, pageWidth, pageHeight);
         }
+        buf = ImageUtilities.scaleToFit(buf, pageWidth, pageHeight);
 
         ImageWrapper iw = new ImageWrapper(buf, LanguageType.getType(opt.optString("language")));
         iw.setCharset(Charset.forName(encoding));
+        iw.setCropType(ImageWrapper.CropType.valueOf(opt.optString("crop", "NONE").toUpperCase(Locale.ENGLISH)));
 
         //ESC/POS only
         int density = opt.optInt("dotDensity", -1);
@@ -210,6 +290,14 @@ public class PrintRaw implements PrintProcessor {
             }
         }
         iw.setDotDensity(density);
+        iw.setEscPosMode(ImageWrapper.EscPosMode.valueOf(opt.optString("mode", "SLICE").toUpperCase(Locale.ENGLISH)));
+        iw.setGraphicsKey(opt.optString("key", null));
+
+        //ZPL only
+        iw.setCompression(ImageWrapper.Compression.valueOf(opt.optString("compression", "NONE").toUpperCase(Locale.ENGLISH)));
+
+        //CPCL only
+        iw.setBinaryGraphics(opt.optBoolean("binary", false));
 
         //EPL only
         iw.setxPos(opt.optInt("x", 0));
@@ -218,35 +306,112 @@ public class PrintRaw implements PrintProcessor {
         return iw;
     }
 
+    /**
+     * Closes off any pending in-memory commands and appends {@code segment} after them
+     */
+    private void addSegment(RawSegment segment) {
+        if (commands.getLength() > 0) {
+            segments.add(new RawSegment.Bytes(commands));
+            commands = new ByteArrayBuilder();
+        }
+        if (segment != null) {
+            segments.add(segment);
+        }
+    }
+
+    /**
+     * Brings every segment of the job into memory, for jobs that must be searched or rewritten before sending
+     */
+    private ByteArrayBuilder readAll() throws IOException {
+        ByteArrayBuilder all = new ByteArrayBuilder();
+        for(RawSegment segment : segments) {
+            segment.appendTo(all);
+        }
+
+        return all;
+    }
+
+    /**
+     * Brings segments generated as they are sent, such as rendered PDF pages, into memory so a job sent several times only generates them once
+     */
+    private void bufferGenerated() throws IOException {
+        for(int i = 0; i < segments.size(); i++) {
+            RawSegment segment = segments.get(i);
+            if (segment.length() < 0) {
+                ByteArrayBuilder data = new ByteArrayBuilder();
+                segment.appendTo(data);
+                segments.set(i, new RawSegment.Bytes(data));
+            }
+        }
+    }
+
+    /**
+     * Graphics keys store and recall images in the NV memory of ESC/POS printers, which only the {@code GRAPHICS} mode writes to
+     */
+    private static void checkGraphicsKeyOptions(JSONObject opt) throws InvalidRawImageException {
+        LanguageType language = LanguageType.getType(opt.optString("language"));
+        String mode = opt.optString("mode", "SLICE").toUpperCase(Locale.ENGLISH);
+
+        if (language != LanguageType.ESCPOS || !ImageWrapper.EscPosMode.GRAPHICS.name().equals(mode)) {
+            throw new InvalidRawImageException(String.format("Graphics key is only supported for ESC/POS images in GRAPHICS mode, not %s in %s mode", language, mode));
+        }
+    }
+
     @Override
     public void print(PrintOutput output, PrintOptions options) throws PrintException {
         PrintOptions.Raw rawOpts = options.getRawOptions();
+        addSegment(null);
 
-        List<ByteArrayBuilder> pages;
-        if (rawOpts.getPerSpool() > 0 && rawOpts.getEndOfDoc() != null && !rawOpts.getEndOfDoc().isEmpty()) {
-            try {
-                pages = ByteUtilities.splitByteArray(commands.getByteArray(), rawOpts.getEndOfDoc().getBytes(encoding), rawOpts.getPerSpool());
+        List<List<RawSegment>> pages;
+        int copies = rawOpts.getCopies();
+        try {
+            if (copies > 1 && rawOpts.getCopyStrategy() == PrintOptions.CopyStrategy.NATIVE) {
+                LanguageType language = LanguageType.getType(rawOpts.getLanguage() == null? "":rawOpts.getLanguage());
+                byte[] multiplied = null;
+                if (NativeCopies.isSupported(language)) {
+                    multiplied = NativeCopies.apply(readAll().getByteArray(), language, copies);
+                }
+
+                if (multiplied != null) {
+                    log.debug("Sending job once, with {} copies made by the printer", copies);
+                    segments.clear();
+                    segments.add(new RawSegment.Bytes(new ByteArrayBuilder(multiplied)));
+                    copies = 1;
+                } else {
+                    log.warn("Cannot set copies for language \"{}\", resending job instead", rawOpts.getLanguage());
+                }
             }
-            catch(UnsupportedEncodingException e) {
-                throw new PrintException(e);
+
+            if (rawOpts.getPerSpool() > 0 && rawOpts.getEndOfDoc() != null && !rawOpts.getEndOfDoc().isEmpty()) {
+                //documents only end on endOfDoc, which may fall anywhere in the output of a PDF, so the whole job is read to search for it
+                pages = new ArrayList<>();
+                for(ByteArrayBuilder bab : ByteUtilities.splitByteArray(readAll().getByteArray(), rawOpts.getEndOfDoc().getBytes(encoding), rawOpts.getPerSpool())) {
+                    pages.add(Collections.<RawSegment>singletonList(new RawSegment.Bytes(bab)));
+                }
+            } else {
+                if (copies > 1) {
+                    bufferGenerated();
+                }
+                pages = new ArrayList<>();
+                pages.add(segments);
             }
-        } else {
-            pages = new ArrayList<>();
-            pages.add(commands);
+        }
+        catch(IOException e) {
+            throw new PrintException(e);
         }
 
-        for(int i = 0; i < rawOpts.getCopies(); i++) {
-            for(ByteArrayBuilder bab : pages) {
+        for(int i = 0; i < copies; i++) {
+            for(List<RawSegment> page : pages) {
                 try {
                     if (output.isSetHost()) {
-                        printToHost(output.getHost(), output.getPort(), bab.getByteArray());
+                        printToHost(output.getHost(), output.getPort(), page);
                     } else if (output.isSetFile()) {
-                        printToFile(output.getFile(), bab.getByteArray());
+                        printToFile(output.getFile(), page);
                     } else {
                         if (rawOpts.isAltPrinting()) {
-                            printToAlternate(output.getPrintService(), bab.getByteArray());
+                            printToAlternate(output.getPrintService(), page);
                         } else {
-                            printToPrinter(output.getPrintService(), bab.getByteArray(), rawOpts);
+                            printToPrinter(output.getPrintService(), page, rawOpts);
                         }
                     }
                 }
@@ -265,12 +430,14 @@ public class PrintRaw implements PrintProcessor {
      * so the Operating System will have absolutely no printer information.
      * This is printing "blind".
      */
-    private void printToHost(String host, int port, byte[] cmds) throws IOException {
+    private void printToHost(String host, int port, List<RawSegment> cmds) throws IOException {
         log.debug("Printing to host {}:{}", host, port);
 
-        //throws any exception and auto-closes socket and stream
-        try(Socket socket = new Socket(host, port); DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
-            out.write(cmds);
+        //throws any exception and auto-closes socket
+        try(SocketChannel out = SocketChannel.open(new InetSocketAddress(host, port))) {
+            for(RawSegment segment : cmds) {
+                segment.writeTo(out);
+            }
         }
     }
 
@@ -279,30 +446,75 @@ public class PrintRaw implements PrintProcessor {
      *
      * @param file File to be written
      */
-    private void printToFile(File file, byte[] cmds) throws IOException {
+    private void printToFile(File file, List<RawSegment> cmds) throws IOException {
         log.debug("Printing to file: {}", file.getName());
 
         //throws any exception and auto-closes stream
-        try(OutputStream out = new FileOutputStream(file)) {
-            out.write(cmds);
+        try(FileOutputStream out = new FileOutputStream(file)) {
+            FileChannel channel = out.getChannel();
+            for(RawSegment segment : cmds) {
+                segment.writeTo(channel);
+            }
         }
     }
 
     /**
-     * Constructs a {@code SimpleDoc} with the {@code commands} byte array.
+     * Constructs a {@code SimpleDoc} with the {@code commands} byte array, or as a stream
+     * when parts of the job are still to be read from their source.
      */
-    private void printToPrinter(PrintService service, byte[] cmds, PrintOptions.Raw rawOpts) throws PrintException {
+    private void printToPrinter(PrintService service, List<RawSegment> cmds, PrintOptions.Raw rawOpts) throws PrintException, IOException {
         if (service == null) { throw new NullPrintServiceException("Service cannot be null"); }
-        if (cmds == null || cmds.length == 0) { throw new NullCommandException("No commands found to send to the printer"); }
 
-        SimpleDoc doc = new SimpleDoc(cmds, DocFlavor.BYTE_ARRAY.AUTOSENSE, null);
+        long length = 0;
+        boolean unknownLength = false;
+        for(RawSegment segment : cmds) {
+            if (segment.length() < 0) {
+                unknownLength = true;
+            } else {
+                length += segment.length();
+            }
+        }
+        if (length == 0 && !unknownLength) { throw new NullCommandException("No commands found to send to the printer"); }
+
+        //anything not already in memory, such as a local file, is streamed to the service rather than read onto the heap
+        boolean inMemory = cmds.size() == 1 && cmds.get(0) instanceof RawSegment.Bytes;
+
+        InputStream stream = null;
+        SimpleDoc doc;
+        if (!inMemory && service.isDocFlavorSupported(DocFlavor.INPUT_STREAM.AUTOSENSE)) {
+            Vector<InputStream> streams = new Vector<>();
+            for(RawSegment segment : cmds) {
+                streams.add(segment.openStream());
+            }
+            stream = new SequenceInputStream(streams.elements());
+            doc = new SimpleDoc(stream, DocFlavor.INPUT_STREAM.AUTOSENSE, null);
+        } else {
+            if (length > Integer.MAX_VALUE - 8) {
+                throw new PrintException(String.format("Job of %d bytes is too large to send to a printer which does not accept streamed data", length));
+            }
+
+            ByteArrayBuilder bytes = new ByteArrayBuilder((int)length);
+            for(RawSegment segment : cmds) {
+                segment.appendTo(bytes);
+            }
+            if (bytes.getLength() == 0) { throw new NullCommandException("No commands found to send to the printer"); }
+
+            doc = new SimpleDoc(bytes.getByteArray(), DocFlavor.BYTE_ARRAY.AUTOSENSE, null);
+        }
 
         PrintRequestAttributeSet attributes = new HashPrintRequestAttributeSet();
         attributes.add(new JobName(rawOpts.getJobName(Constants.RAW_PRINT), Locale.getDefault()));
 
         DocPrintJob printJob = service.createPrintJob();
 
-        waitForPrint(printJob, doc, attributes);
+        try {
+            waitForPrint(printJob, doc, attributes);
+        }
+        finally {
+            if (stream != null) {
+                try { stream.close(); } catch(IOException ignore) {}
+            }
+        }
     }
 
     protected void waitForPrint(DocPrintJob printJob, Doc doc, PrintRequestAttributeSet attributes) throws PrintException {
@@ -358,7 +570,7 @@ public class PrintRaw implements PrintProcessor {
      * Alternate printing mode for CUPS capable OSs, issues lp via command line
      * on Linux, BSD, Solaris, OSX, etc. This will never work on Windows.
      */
-    public void printToAlternate(PrintService service, byte[] cmds) throws IOException, PrintException {
+    public void printToAlternate(PrintService service, List<RawSegment> cmds) throws IOException, PrintException {
         File tmp = File.createTempFile("qz_raw_", null);
         try {
             printToFile(tmp, cmds);
@@ -381,7 +593,16 @@ public class PrintRaw implements PrintProcessor {
     @Override
     public void cleanup() {
         commands.clear();
+        segments.clear();
+        for(Closeable document : documents) {
+            try { document.close(); }
+            catch(IOException e) {
+                log.warn("Failed to close PDF document", e);
+            }
+        }
+        documents.clear();
         encoding = null;
+        encoder = null;
     }
 
 }
@@ -6,11 +6,13 @@ import javafx.application.Platform;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
 import javafx.concurrent.Worker;
-import javafx.embed.swing.SwingFXUtils;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
+import javafx.geometry.Bounds;
+import javafx.geometry.Rectangle2D;
 import javafx.scene.Scene;
 import javafx.scene.SnapshotParameters;
+import javafx.scene.image.PixelFormat;
 import javafx.scene.image.WritableImage;
 import javafx.scene.web.WebView;
 import javafx.stage.Stage;
@@ -23,11 +25,16 @@ import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import qz.utils.PrintingUtilities;
+import qz.ws.PrintSocketServer;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * JavaFX container for taking HTML snapshots.
@@ -39,88 +46,20 @@ public class WebApp extends Application {
 
     private static final Logger log = LoggerFactory.getLogger(WebApp.class);
 
-    private static final int SLEEP = 250;
-    private static final int TIMEOUT = 60; //total paused seconds before failing
+    private static final int TIMEOUT = 60; //total seconds to wait for JavaFX before failing
+    private static final long DEFAULT_SETTLE = 100; //milliseconds for layout to settle after each resize
+    private static final int TILE_SIZE = 2048; //pixels across each snapshot, well within the texture limits of any graphics
 
     private static WebApp instance = null;
 
-    private static Stage stage;
-    private static WebView webView;
-    private static double pageWidth;
-    private static double pageHeight;
-    private static double pageZoom;
-
-    private static final AtomicBoolean started = new AtomicBoolean(false);
-    private static final AtomicBoolean complete = new AtomicBoolean(false);
-    private static final AtomicReference<Throwable> thrown = new AtomicReference<>();
-
-    private static PauseTransition snap;
-
-    //listens for a Succeeded state to activate image capture
-    private static ChangeListener<Worker.State> stateListener = new ChangeListener<Worker.State>() {
-        @Override
-        public void changed(ObservableValue<? extends Worker.State> ov, Worker.State oldState, Worker.State newState) {
-            log.trace("New state: {} > {}", oldState, newState);
-
-            if (newState == Worker.State.SUCCEEDED) {
-                //ensure html tag doesn't use scrollbars, clipping page instead
-                Document doc = webView.getEngine().getDocument();
-                NodeList tags = doc.getElementsByTagName("html");
-                if (tags != null && tags.getLength() > 0) {
-                    Node base = tags.item(0);
-                    Attr applied = (Attr)base.getAttributes().getNamedItem("style");
-                    if (applied == null) {
-                        applied = doc.createAttribute("style");
-                    }
-                    applied.setValue(applied.getValue() + "; overflow: hidden;");
-                    base.getAttributes().setNamedItem(applied);
-                }
-
-                try {
-                    Reflect.on(webView).call("setZoom", pageZoom);
-                    log.trace("Zooming in by x{} for increased quality", pageZoom);
-                }
-                catch(ReflectException e) {
-                    log.warn("Unable zoom, using default quality");
-                    pageZoom = 1; //only zoom affects webView scaling
-                }
-
-                log.trace("Setting HTML page width to {}", (pageWidth * pageZoom));
-                webView.setMinWidth(pageWidth * pageZoom);
-                webView.setPrefWidth(pageWidth * pageZoom);
-                webView.autosize();
-
-                //we have to resize the width first, for responsive html, then calculate the best fit height
-                final PauseTransition resize = new PauseTransition(Duration.millis(100));
-                resize.setOnFinished(new EventHandler<ActionEvent>() {
-                    @Override
-                    public void handle(ActionEvent actionEvent) {
-                        if (pageHeight <= 0) {
-                            String heightText = webView.getEngine().executeScript("Math.max(document.body.offsetHeight, document.body.scrollHeight)").toString();
-                            pageHeight = Double.parseDouble(heightText);
-                        }
-
-                        log.trace("Setting HTML page height to {}", (pageHeight * pageZoom));
-                        webView.setMinHeight(pageHeight * pageZoom);
-                        webView.setPrefHeight(pageHeight * pageZoom);
-                        webView.autosize();
-
-                        snap.playFromStart();
-                    }
-                });
+    private static int poolSize;
+    private static Semaphore admission;
 
-                resize.playFromStart();
-            }
-        }
-    };
+    private static long settleDelay;
 
-    //listens for load progress
-    private static ChangeListener<Number> workDoneListener = new ChangeListener<Number>() {
-        @Override
-        public void changed(ObservableValue<? extends Number> ov, Number oldWork, Number newWork) {
-            log.trace("Done: {} > {}", oldWork, newWork);
-        }
-    };
+    private static final CountDownLatch started = new CountDownLatch(1);
+    //views not rendering a capture, only used on the JavaFX thread
+    private static final Deque<Renderer> idle = new ArrayDeque<>();
 
 
     /** Called by JavaFX thread */
@@ -130,7 +69,19 @@ public class WebApp extends Application {
 
     /** Starts JavaFX thread if not already running */
     public static synchronized void initialize() throws IOException {
+        WebAppState.starting();
+
         if (instance == null) {
+            int limit = PrintingUtilities.getProcessorLimit();
+            if (limit == Integer.MAX_VALUE) {
+                limit = Runtime.getRuntime().availableProcessors();
+            }
+            poolSize = (int)Math.max(1, Math.min(limit, PrintSocketServer.getTraySetting("html.renderers", "htmlRenderers", limit)));
+            admission = new Semaphore(poolSize, true);
+            log.debug("Allowing {} simultaneous HTML captures", poolSize);
+
+            settleDelay = Math.max(0, PrintSocketServer.getTraySetting("html.settleDelay", "htmlSettleDelay", DEFAULT_SETTLE));
+
             new Thread() {
                 public void run() {
                     Application.launch(WebApp.class);
@@ -138,113 +89,293 @@ public class WebApp extends Application {
             }.start();
         }
 
-        for(int i = 0; i < (TIMEOUT * 1000); i += SLEEP) {
-            if (started.get()) { break; }
-
-            log.trace("Waiting for JavaFX..");
-            try { Thread.sleep(SLEEP); } catch(Exception ignore) {}
+        log.trace("Waiting for JavaFX..");
+        try {
+            if (!started.await(TIMEOUT, TimeUnit.SECONDS)) {
+                WebAppState.failed();
+                throw new IOException("JavaFX did not start");
+            }
         }
-
-        if (!started.get()) {
-            throw new IOException("JavaFX did not start");
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while starting JavaFX", e);
         }
+
+        WebAppState.started();
     }
 
     @Override
     public void start(Stage st) throws Exception {
-        started.set(true);
-        log.debug("Started JavaFX");
-
-        webView = new WebView();
-        Scene sc = new Scene(webView);
-
-        stage = st;
-        stage.setScene(sc);
-
-        Worker<Void> worker = webView.getEngine().getLoadWorker();
-        worker.stateProperty().addListener(stateListener);
-        worker.workDoneProperty().addListener(workDoneListener);
+        idle.push(new Renderer(st));
 
         //prevents JavaFX from shutting down when hiding window
         Platform.setImplicitExit(false);
+
+        started.countDown();
+        log.debug("Started JavaFX");
     }
 
 
     /**
-     * Sets up capture to run on JavaFX thread and returns snapshot of rendered page
+     * Sets up capture to run on JavaFX thread and returns snapshot of rendered page.
+     * Up to the pool size of captures run at once, each on a view of its own, and later captures wait for a view to be free.
      *
      * @param model Data about the html to be rendered for capture
      * @return BufferedImage of the rendered html
      */
-    public static synchronized BufferedImage capture(final WebAppModel model) throws Throwable {
-        final AtomicReference<BufferedImage> capture = new AtomicReference<>();
-        complete.set(false);
-        thrown.set(null);
-
+    public static BufferedImage capture(final WebAppModel model) throws Throwable {
         //ensure JavaFX has started before we run
-        if (!started.get()) {
+        if (started.getCount() > 0) {
             throw new IOException("JavaFX has not been started");
         }
 
-        // run these actions on the JavaFX thread
-        Platform.runLater(new Thread() {
-            public void run() {
-                try {
-                    pageWidth = model.getWebWidth();
-                    pageHeight = model.getWebHeight();
-                    pageZoom = model.getZoom();
-
-                    webView.setMinSize(100, 100);
-                    webView.setPrefSize(100, 100);
-                    webView.autosize();
-
-                    stage.show(); //FIXME - will not capture without showing stage
-                    stage.toBack();
-
-                    //ran when engine reaches SUCCEEDED state, takes snapshot of loaded html
-                    snap = new PauseTransition(Duration.millis(100));
-                    snap.setOnFinished(new EventHandler<ActionEvent>() {
-                        @Override
-                        public void handle(ActionEvent actionEvent) {
-                            try {
-                                log.debug("Attempting image capture");
-
-                                WritableImage snapshot = webView.snapshot(new SnapshotParameters(), null);
-                                capture.set(SwingFXUtils.fromFXImage(snapshot, null));
-
-                                complete.set(true);
-                            }
-                            catch(Throwable t) {
-                                thrown.set(t);
-                            }
-                            finally {
-                                stage.hide(); //hide stage so users won't have to manually close it
-                            }
-                        }
-                    });
-
-                    //actually begin loading the html
-                    if (model.isPlainText()) {
-                        webView.getEngine().loadContent(model.getSource(), "text/html");
-                    } else {
-                        webView.getEngine().load(model.getSource());
+        log.trace("Waiting for HTML view, {}/{} in use", poolSize - admission.availablePermits(), poolSize);
+        admission.acquire();
+        try {
+            final Capture capture = new Capture(model);
+
+            // run these actions on the JavaFX thread
+            Platform.runLater(new Thread() {
+                public void run() {
+                    Renderer renderer = idle.poll();
+                    if (renderer == null) {
+                        renderer = new Renderer(new Stage());
                     }
+
+                    renderer.render(capture);
                 }
-                catch(Throwable t) {
-                    thrown.set(t);
+            });
+
+            log.trace("Waiting on capture..");
+            capture.done.await();
+
+            if (capture.thrown != null) { throw capture.thrown; }
+
+            return capture.image;
+        }
+        finally {
+            admission.release();
+        }
+    }
+
+
+    /** State of a single capture, shared between the requesting thread and the JavaFX thread */
+    private static class Capture {
+        private final double pageWidth;
+        private double pageHeight;
+        private double pageZoom;
+        private final boolean plainText;
+        private final String source;
+
+        //counted down by the JavaFX thread once the image or error is set
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Throwable thrown;
+        private volatile BufferedImage image;
+
+        Capture(WebAppModel model) {
+            pageWidth = model.getWebWidth();
+            pageHeight = model.getWebHeight();
+            pageZoom = model.getZoom();
+            plainText = model.isPlainText();
+            source = model.getSource();
+        }
+    }
+
+    /**
+     * Off-screen view which renders one capture at a time, only used on the JavaFX thread.
+     * Views are kept and reused for later captures once done.
+     */
+    private static class Renderer {
+        private final Stage stage;
+        private final WebView webView;
+        private final PauseTransition snap = new PauseTransition(Duration.millis(settleDelay));
+        private Capture capture;
+
+        //listens for a Succeeded state to activate image capture
+        private ChangeListener<Worker.State> stateListener = new ChangeListener<Worker.State>() {
+            @Override
+            public void changed(ObservableValue<? extends Worker.State> ov, Worker.State oldState, Worker.State newState) {
+                log.trace("New state: {} > {}", oldState, newState);
+
+                if (newState == Worker.State.SUCCEEDED && capture != null) {
+                    try {
+                        loaded(capture);
+                    }
+                    catch(Throwable t) {
+                        finish(t);
+                    }
+                } else if (newState == Worker.State.FAILED && capture != null) {
+                    finish(new IOException("Failed to load HTML", webView.getEngine().getLoadWorker().getException()));
                 }
             }
-        });
+        };
 
-        Throwable t = null;
-        while(!complete.get() && (t = thrown.get()) == null) {
-            log.trace("Waiting on capture..");
-            try { Thread.sleep(1000); } catch(Exception ignore) {}
+        //listens for load progress
+        private ChangeListener<Number> workDoneListener = new ChangeListener<Number>() {
+            @Override
+            public void changed(ObservableValue<? extends Number> ov, Number oldWork, Number newWork) {
+                log.trace("Done: {} > {}", oldWork, newWork);
+            }
+        };
+
+        Renderer(Stage stage) {
+            webView = new WebView();
+            Scene sc = new Scene(webView);
+
+            this.stage = stage;
+            stage.setScene(sc);
+
+            Worker<Void> worker = webView.getEngine().getLoadWorker();
+            worker.stateProperty().addListener(stateListener);
+            worker.workDoneProperty().addListener(workDoneListener);
+
+            //ran when engine reaches SUCCEEDED state, takes snapshot of loaded html
+            snap.setOnFinished(new EventHandler<ActionEvent>() {
+                @Override
+                public void handle(ActionEvent actionEvent) {
+                    try {
+                        log.debug("Attempting image capture");
+
+                        capture.image = snapshotTiles();
+                        finish(null);
+                    }
+                    catch(Throwable t) {
+                        finish(t);
+                    }
+                }
+            });
         }
 
-        if (t != null) { throw t; }
+        void render(Capture capture) {
+            this.capture = capture;
+
+            try {
+                webView.setMinSize(100, 100);
+                webView.setPrefSize(100, 100);
+                webView.autosize();
 
-        return capture.get();
+                stage.show(); //FIXME - will not capture without showing stage
+                stage.toBack();
+
+                //actually begin loading the html
+                if (capture.plainText) {
+                    webView.getEngine().loadContent(capture.source, "text/html");
+                } else {
+                    webView.getEngine().load(capture.source);
+                }
+            }
+            catch(Throwable t) {
+                finish(t);
+            }
+        }
+
+        private void loaded(final Capture capture) {
+            //ensure html tag doesn't use scrollbars, clipping page instead
+            Document doc = webView.getEngine().getDocument();
+            NodeList tags = doc.getElementsByTagName("html");
+            if (tags != null && tags.getLength() > 0) {
+                Node base = tags.item(0);
+                Attr applied = (Attr)base.getAttributes().getNamedItem("style");
+                if (applied == null) {
+                    applied = doc.createAttribute("style");
+                }
+                applied.setValue(applied.getValue() + "; overflow: hidden;");
+                base.getAttributes().setNamedItem(applied);
+            }
+
+            try {
+                Reflect.on(webView).call("setZoom", capture.pageZoom);
+                log.trace("Zooming in by x{} for increased quality", capture.pageZoom);
+            }
+            catch(ReflectException e) {
+                log.warn("Unable zoom, using default quality");
+                capture.pageZoom = 1; //only zoom affects webView scaling
+            }
+
+            log.trace("Setting HTML page width to {}", (capture.pageWidth * capture.pageZoom));
+            webView.setMinWidth(capture.pageWidth * capture.pageZoom);
+            webView.setPrefWidth(capture.pageWidth * capture.pageZoom);
+            webView.autosize();
+
+            //with a known height there is nothing to measure, so the page is sized and captured after a single settle
+            if (capture.pageHeight > 0) {
+                setHeight(capture);
+                return;
+            }
+
+            //we have to resize the width first, for responsive html, then calculate the best fit height
+            final PauseTransition resize = new PauseTransition(Duration.millis(settleDelay));
+            resize.setOnFinished(new EventHandler<ActionEvent>() {
+                @Override
+                public void handle(ActionEvent actionEvent) {
+                    try {
+                        String heightText = webView.getEngine().executeScript("Math.max(document.body.offsetHeight, document.body.scrollHeight)").toString();
+                        capture.pageHeight = Double.parseDouble(heightText);
+
+                        setHeight(capture);
+                    }
+                    catch(Throwable t) {
+                        finish(t);
+                    }
+                }
+            });
+
+            resize.playFromStart();
+        }
+
+        /**
+         * Snapshots the view a tile at a time straight into the pixels of a single image,
+         * so neither the textures rendered nor the intermediate images are ever larger than a tile
+         */
+        private BufferedImage snapshotTiles() {
+            Bounds bounds = webView.getBoundsInParent();
+            int width = (int)Math.ceil(bounds.getWidth());
+            int height = (int)Math.ceil(bounds.getHeight());
+            log.trace("Capturing {}x{} HTML page in tiles of {}", width, height, TILE_SIZE);
+
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            SnapshotParameters params = new SnapshotParameters();
+            WritableImage tile = null;
+            int[] pixels = new int[Math.min(TILE_SIZE, width) * Math.min(TILE_SIZE, height)];
+
+            for(int y = 0; y < height; y += TILE_SIZE) {
+                for(int x = 0; x < width; x += TILE_SIZE) {
+                    int w = Math.min(TILE_SIZE, width - x);
+                    int h = Math.min(TILE_SIZE, height - y);
+
+                    params.setViewport(new Rectangle2D(bounds.getMinX() + x, bounds.getMinY() + y, w, h));
+                    //reuse the last tile's image when the same size, which all but the edge tiles are
+                    boolean reuse = tile != null && tile.getWidth() == w && tile.getHeight() == h;
+                    tile = webView.snapshot(params, reuse? tile:null);
+
+                    tile.getPixelReader().getPixels(0, 0, w, h, PixelFormat.getIntArgbInstance(), pixels, 0, w);
+                    image.getRaster().setDataElements(x, y, w, h, pixels);
+                }
+            }
+
+            return image;
+        }
+
+        private void setHeight(Capture capture) {
+            log.trace("Setting HTML page height to {}", (capture.pageHeight * capture.pageZoom));
+            webView.setMinHeight(capture.pageHeight * capture.pageZoom);
+            webView.setPrefHeight(capture.pageHeight * capture.pageZoom);
+            webView.autosize();
+
+            snap.playFromStart();
+        }
+
+        /** Ends the current capture, waking its caller, and frees this view for the next */
+        private void finish(Throwable t) {
+            Capture done = capture;
+            capture = null;
+            stage.hide(); //hide stage so users won't have to manually close it
+
+            idle.push(this);
+
+            done.thrown = t;
+            done.done.countDown();
+        }
     }
 
 }
@@ -0,0 +1,102 @@
+package qz.printer.action;
+
+import com.github.zafarkhaja.semver.Version;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qz.common.Constants;
+import qz.deploy.DeployUtilities;
+import qz.utils.SystemUtilities;
+
+import java.io.File;
+
+/**
+ * Startup state of the JavaFX renderer used for HTML printing, and its optional warm-up at tray startup.
+ * <p/>
+ * Kept apart from {@link WebApp} so the state can be read, for the about info, without loading any JavaFX classes.
+ */
+public class WebAppState {
+
+    private static final Logger log = LoggerFactory.getLogger(WebAppState.class);
+
+    private static final String WARMUP_HTML = "<html><body style='font-family: sans-serif;'>" +
+            "<h1>" + Constants.ABOUT_TITLE + "</h1><p>Warming up <b>HTML</b> <i>printing</i> 0123456789</p>" +
+            "</body></html>";
+
+    public enum State {
+        COLD, STARTING, WARMING, READY, FAILED
+    }
+
+    private static State state = State.COLD;
+
+
+    private WebAppState() {}
+
+    public static synchronized State getState() {
+        return state;
+    }
+
+    /** JavaFX is being launched, unless already running or warming up */
+    static synchronized void starting() {
+        if (state == State.COLD || state == State.FAILED) {
+            state = State.STARTING;
+        }
+    }
+
+    /** JavaFX is running, though still not ready while the warm-up render is going */
+    static synchronized void started() {
+        if (state != State.WARMING) {
+            state = State.READY;
+        }
+    }
+
+    private static synchronized void warmedUp() {
+        state = State.READY;
+    }
+
+    static synchronized void failed() {
+        state = State.FAILED;
+    }
+
+    /** Points JavaFX at its native libraries when running from a jar on Java 11 and up */
+    static void setupLibraryPath() {
+        if (SystemUtilities.isJar() && Constants.JAVA_VERSION.greaterThanOrEqualTo(Version.valueOf("11.0.0"))) {
+            System.setProperty("java.library.path", new File(DeployUtilities.detectJarPath()).getParent() + "/libs/");
+        }
+    }
+
+    /**
+     * Starts JavaFX and renders a small page on a background thread, so the first HTML print doesn't wait on
+     * the toolkit, WebKit and font loading. Returns straight away.
+     */
+    public static void warmup() {
+        synchronized(WebAppState.class) {
+            if (state != State.COLD) { return; }
+            state = State.WARMING;
+        }
+
+        Thread warmup = new Thread("javafx-warmup") {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                try {
+                    setupLibraryPath();
+                    WebApp.initialize();
+                    log.debug("Started JavaFX for warm-up in {} ms", System.currentTimeMillis() - start);
+
+                    WebApp.capture(new WebAppModel(WARMUP_HTML, true, 300, 0, false, 1.0));
+
+                    warmedUp();
+                    log.info("HTML printing warmed up in {} ms", System.currentTimeMillis() - start);
+                }
+                catch(Throwable t) {
+                    failed();
+                    log.warn("Unable to warm up HTML printing", t);
+                }
+            }
+        };
+        warmup.setDaemon(true);
+        warmup.setPriority(Thread.MIN_PRIORITY);
+        warmup.start();
+    }
+
+}
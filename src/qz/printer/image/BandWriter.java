@@ -0,0 +1,81 @@
+package qz.printer.image;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Encodes an image in independent bands and writes them out in order.
+ * <p/>
+ * Large images have their bands encoded in parallel, with each band written
+ * as soon as it and every band before it are done, so output can start while later bands are still being encoded.
+ * Only a few bands per thread are encoded ahead of the one being written.
+ */
+public abstract class BandWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(BandWriter.class);
+
+    // Images with fewer pixels than this are encoded on the calling thread, as splitting them costs more than it saves
+    private static final int PARALLEL_THRESHOLD = 1024 * 1024;
+    // Bands encoded or waiting to be written for each thread, bounding the memory held ahead of the output
+    private static final int BANDS_PER_THREAD = 2;
+    private static final ForkJoinPool bandPool = new ForkJoinPool();
+
+    /**
+     * Encodes a single band of the image, using only state that is not modified while encoding
+     */
+    protected abstract byte[] encode(int band);
+
+    /**
+     * Encodes {@code bands} bands and writes them to {@code out} in order
+     *
+     * @param pixels Number of pixels encoded over all bands, deciding whether the bands are worth encoding in parallel
+     */
+    public void write(OutputStream out, int bands, long pixels) throws IOException {
+        if (bands > 1 && bandPool.getParallelism() > 1 && pixels >= PARALLEL_THRESHOLD) {
+            log.debug("Encoding {} bands in parallel", bands);
+
+            //next band is only started as one is written, so a slow printer holds back encoding rather than letting bands pile up
+            int inFlight = BANDS_PER_THREAD * bandPool.getParallelism();
+            Deque<ForkJoinTask<byte[]>> tasks = new ArrayDeque<>(Math.min(bands, inFlight));
+            int next = 0;
+            try {
+                while(next < bands && tasks.size() < inFlight) {
+                    tasks.add(submit(next++));
+                }
+                while(!tasks.isEmpty()) {
+                    out.write(tasks.poll().join());
+                    if (next < bands) {
+                        tasks.add(submit(next++));
+                    }
+                }
+            }
+            finally {
+                for(ForkJoinTask<byte[]> task : tasks) {
+                    task.cancel(false);
+                }
+            }
+        } else {
+            for(int i = 0; i < bands; i++) {
+                out.write(encode(i));
+            }
+        }
+    }
+
+    private ForkJoinTask<byte[]> submit(final int band) {
+        return bandPool.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return encode(band);
+            }
+        });
+    }
+
+}
@@ -0,0 +1,93 @@
+package qz.printer.image;
+
+import org.codehaus.jettison.json.JSONObject;
+import qz.common.ByteArrayBuilder;
+import qz.printer.ImageWrapper;
+import qz.utils.Packbits;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static qz.printer.image.PackedRows.BAND_ROWS;
+
+/**
+ * Encodes images as Brother raster lines, compressed with packbits.
+ */
+public class BrotherRasterEncoder implements ImageEncoder {
+
+    // Bytes in a Brother raster line, narrower images are padded to fill it
+    private static final int LINE_BYTES = 162;
+    private static final byte[] BLANK_LINE = {0x5A};
+    // Each byte value with its bits in reverse order
+    private static final byte[] MIRRORED = new byte[256];
+
+    static {
+        for(int i = 0; i < MIRRORED.length; i++) {
+            MIRRORED[i] = (byte)(Integer.reverse(i) >>> 24);
+        }
+    }
+
+    @Override
+    public void encode(ImageWrapper image, JSONObject opt, OutputStream out) throws IOException {
+
+        // Enable raster mode
+        // out.write(new byte[] {0x1B, 0x69, 0x61, 0x01});
+
+        final byte[] bits = image.getPackedBits();
+        final int bytesPerRow = image.getBytesPerRow();
+        final int height = image.getHeight();
+
+        byte n5 = (byte)(height & 0xff);
+        byte n6 = (byte)(height >> 8 & 0xff);
+        byte n7 = (byte)(height >> 16 & 0xff);
+        byte n8 = (byte)(height >> 24 & 0xff);
+
+        out.write(new byte[] {0x1B, 0x69, 0x7A, (byte) 0x86, 0x0A, 0x50, 0x00, n5, n6, n7, n8, 0x00, 0x00});
+
+        out.write(new byte[] {0x4D, 0x02});
+
+        // Rows are sent mirrored, as the print head's first dot is on the right of the label
+        new BandWriter() {
+            @Override
+            protected byte[] encode(int band) {
+                int lineBytes = Math.max(LINE_BYTES, bytesPerRow);
+                int end = Math.min(height, (band + 1) * BAND_ROWS);
+
+                // buffers are reused for every row of the band, with the padding past the image staying blank
+                byte[] line = new byte[lineBytes];
+                byte[] packed = new byte[3 + Packbits.maxPackedLength(lineBytes)];
+                packed[0] = 0x67;
+                ByteArrayBuilder rows = new ByteArrayBuilder(BAND_ROWS * (bytesPerRow / 2 + 4));
+
+                for(int offset = band * BAND_ROWS; offset < end; offset++) {
+                    int posStart = offset * bytesPerRow;
+                    if (allFalse(bits, posStart, bytesPerRow)) {
+                        rows.append(BLANK_LINE);
+                    } else {
+                        int last = posStart + bytesPerRow - 1;
+                        for(int i = 0; i < bytesPerRow; i++) {
+                            line[i] = MIRRORED[bits[last - i] & 0xFF];
+                        }
+
+                        int length = Packbits.packbits(line, 0, lineBytes, packed, 3);
+                        packed[2] = (byte)length;
+                        rows.append(packed, 0, 3 + length);
+                    }
+                }
+
+                return rows.getByteArray();
+            }
+        }.write(out, (height + BAND_ROWS - 1) / BAND_ROWS, (long)image.getWidth() * height);
+
+    }
+
+    private static boolean allFalse(byte[] val, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (val[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
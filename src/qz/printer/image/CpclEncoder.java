@@ -0,0 +1,31 @@
+package qz.printer.image;
+
+import org.codehaus.jettison.json.JSONObject;
+import qz.printer.ImageWrapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes images as a CPCL graphic, either hexadecimal {@code EG} or binary {@code CG} as set by {@link ImageWrapper#setBinaryGraphics(boolean)}.
+ */
+public class CpclEncoder implements ImageEncoder {
+
+    @Override
+    public void encode(ImageWrapper image, JSONObject opt, OutputStream out) throws IOException {
+        StringBuilder cpcl = new StringBuilder(image.isBinaryGraphics()? "CG ":"EG ")
+                .append(image.getWidth() / 8).append(" ")
+                .append(image.getHeight()).append(" ")
+                .append(image.getxPos()).append(" ")
+                .append(image.getyPos()).append(" ");
+
+        out.write(cpcl.toString().getBytes(image.getCharset()));
+        if (image.isBinaryGraphics()) {
+            PackedRows.writeBytes(image, out);
+        } else {
+            PackedRows.writeHex(image, out);
+        }
+        out.write(new byte[] {13, 10});
+    }
+
+}
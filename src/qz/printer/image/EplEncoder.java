@@ -0,0 +1,27 @@
+package qz.printer.image;
+
+import org.codehaus.jettison.json.JSONObject;
+import qz.printer.ImageWrapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes images as an EPL2 {@code GW} graphic, with the packed rows sent as binary.
+ */
+public class EplEncoder implements ImageEncoder {
+
+    @Override
+    public void encode(ImageWrapper image, JSONObject opt, OutputStream out) throws IOException {
+        StringBuilder epl = new StringBuilder("GW")
+                .append(image.getxPos()).append(",")
+                .append(image.getyPos()).append(",")
+                .append(image.getWidth() / 8).append(",")
+                .append(image.getHeight()).append(",");
+
+        out.write(epl.toString().getBytes(image.getCharset()));
+        PackedRows.writeBytes(image, out);
+        out.write(10);
+    }
+
+}
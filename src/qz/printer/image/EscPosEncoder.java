@@ -0,0 +1,224 @@
+package qz.printer.image;
+
+import org.codehaus.jettison.json.JSONObject;
+import qz.printer.ImageWrapper;
+import qz.printer.LanguageType;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes images for Epson printers. ESC/P always uses {@code ESC *} bit image slices,
+ * ESC/POS sends them as set by {@link ImageWrapper#setEscPosMode(ImageWrapper.EscPosMode)}.
+ */
+public class EscPosEncoder implements ImageEncoder {
+
+    // Rows per ESC/POS raster command, small enough for the receive buffer of most receipt printers
+    private static final int RASTER_ROWS = 960;
+
+    @Override
+    public void encode(ImageWrapper image, JSONObject opt, OutputStream out) throws IOException {
+        if (image.getLanguageType() == LanguageType.ESCPOS) {
+            switch(image.getEscPosMode()) {
+                case RASTER:
+                    writeRaster(image, out);
+                    return;
+                case GRAPHICS:
+                    writeGraphics(image, out);
+                    return;
+            }
+        }
+
+        writeSlices(image, out);
+    }
+
+    /**
+     * http://android-essential-devtopics.blogspot.com/2013/02/sending-bit-image-to-epson-printer.html
+     */
+    private static void writeSlices(final ImageWrapper image, OutputStream out) throws IOException {
+        //        BitSet dots = data.getDots();
+        //        outputStream.write(PrinterCommands.INIT);
+
+
+        // So we have our bitmap data sitting in a bit array called "dots."
+        // This is one long array of 1s (black) and 0s (white) pixels arranged
+        // as if we had scanned the bitmap from top to bottom, left to right.
+        // The printer wants to see these arranged in bytes stacked three high.
+        // So, essentially, we need to read 24 bits for x = 0, generate those
+        // bytes, and send them to the printer, then keep increasing x. If our
+        // image is more than 24 dots high, we have to send a second bit image
+        // command to draw the next slice of 24 dots in the image.
+
+        // Set the line spacing to 24 dots, the height of each "stripe" of the
+        // image that we're drawing. If we don't do this, and we need to
+        // draw the bitmap in multiple passes, then we'll end up with some
+        // whitespace between slices of the image since the default line
+        // height--how much the printer moves on a newline--is 30 dots.
+        out.write(new byte[] {0x1B, 0x33, 24});
+
+        // OK. So, starting from x = 0, read 24 bits down and send that data
+        // to the printer. The offset variable keeps track of our global 'y'
+        // position in the image. For example, if we were drawing a bitmap
+        // that is 48 pixels high, then this while loop will execute twice,
+        // once for each pass of 24 dots. On the first pass, the offset is
+        // 0, and on the second pass, the offset is 24. We keep making
+        // these 24-dot stripes until we've execute past the height of the
+        // bitmap.
+        //
+        // Each stripe is independent of the others, so they are encoded as
+        // separate bands and written out in order.
+        final int sliceBytes = image.getDotDensity() < 72 ? 3 : 6;
+        final int sliceHeight = image.getDotDensity() < 72 ? 24 : 48;
+
+        new BandWriter() {
+            @Override
+            protected byte[] encode(int band) {
+                return encodeSlice(image, band * sliceHeight, sliceBytes);
+            }
+        }.write(out, (image.getHeight() + sliceHeight - 1) / sliceHeight, (long)image.getWidth() * image.getHeight());
+
+        // Restore the line spacing to the default of 30 dots.
+        out.write(new byte[] {0x1B, 0x33, 30});
+
+    }
+
+    /**
+     * Encodes the stripe of the image starting at row {@code offset} as a single bit image command
+     */
+    private static byte[] encodeSlice(ImageWrapper image, int offset, int sliceBytes) {
+        int width = image.getWidth();
+        byte[] stripe = new byte[5 + width * sliceBytes + 1];
+        int pos = 0;
+
+        // The third and fourth parameters to the bit image command are
+        // 'nL' and 'nH'. The 'L' and the 'H' refer to 'low' and 'high', respectively.
+        // All 'n' really is is the width of the image that we're about to draw.
+        // Since the width can be greater than 255 dots, the parameter has to
+        // be split across two bytes, which is why the documentation says the
+        // width is 'nL' + ('nH' * 256).
+        //out.write(new byte[] {0x1B, 0x2A, 33, -128, 0});
+        byte nL = (byte)(width % 256);
+        byte nH = (byte)(width / 256);
+        stripe[pos++] = 0x1B;
+        stripe[pos++] = 0x2A;
+        stripe[pos++] = (byte)image.getDotDensity();
+        stripe[pos++] = nL;
+        stripe[pos++] = nH;
+
+        for(int x = 0; x < width; ++x) {
+            // Remember, 24 dots = 24 bits = 3 bytes.
+            // The 'k' variable keeps track of which of those
+            // three bytes that we're currently scribbling into.
+            for(int k = 0; k < sliceBytes; ++k) {
+                byte slice = 0;
+
+                // A byte is 8 bits. The 'b' variable keeps track
+                // of which bit in the byte we're recording.
+                for(int b = 0; b < 8; ++b) {
+                    // Calculate the y position that we're currently
+                    // trying to draw. We take our offset, divide it
+                    // by 8 so we're talking about the y offset in
+                    // terms of bytes, add our current 'k' byte
+                    // offset to that, multiple by 8 to get it in terms
+                    // of bits again, and add our bit offset to it.
+                    int y = (((offset / 8) + k) * 8) + b;
+
+                    // If the image (or this stripe of the image)
+                    // is shorter than 24 dots, pad with zero.
+                    boolean v = image.isBlackAt(x, y);
+
+                    // Finally, store our bit in the byte that we're currently
+                    // scribbling to. Our current 'b' is actually the exact
+                    // opposite of where we want it to be in the byte, so
+                    // subtract it from 7, shift our bit into place in a temp
+                    // byte, and OR it with the target byte to get it into there.
+                    slice |= (byte)((v? 1:0) << (7 - b));
+                }
+
+                // Phew! Write the damn byte to the buffer
+                stripe[pos++] = slice;
+            }
+        }
+
+        // We're done with this 24-dot high pass. Render a newline
+        // to bump the print head down to the next line
+        // and keep on trucking.
+        stripe[pos] = 10;
+
+        return stripe;
+    }
+
+    /**
+     * Writes the image as {@code GS v 0} raster bit images, which take the packed rows as they are.
+     * Tall images are split over several commands so each fits in the printer's receive buffer.
+     */
+    private static void writeRaster(ImageWrapper image, OutputStream out) throws IOException {
+        int bytesPerRow = image.getBytesPerRow();
+        for(int top = 0; top < image.getHeight(); top += RASTER_ROWS) {
+            int rows = Math.min(RASTER_ROWS, image.getHeight() - top);
+            out.write(new byte[] {0x1D, 0x76, 0x30, 0x00,
+                    (byte)(bytesPerRow & 0xFF), (byte)(bytesPerRow >> 8 & 0xFF),
+                    (byte)(rows & 0xFF), (byte)(rows >> 8 & 0xFF)});
+            out.write(image.getPackedBits(), top * bytesPerRow, rows * bytesPerRow);
+        }
+    }
+
+    /**
+     * Writes the image as {@code GS ( L} graphics data followed by the command to print it.
+     * Without a graphics key the image goes to the print buffer (function 112) and is printed once (function 50),
+     * otherwise it is defined as NV graphics (function 67) and printed by its key (function 69).
+     */
+    private static void writeGraphics(ImageWrapper image, OutputStream out) throws IOException {
+        byte xL = (byte)(image.getWidth() & 0xFF), xH = (byte)(image.getWidth() >> 8 & 0xFF);
+        byte yL = (byte)(image.getHeight() & 0xFF), yH = (byte)(image.getHeight() >> 8 & 0xFF);
+        String key = image.getGraphicsKey();
+
+        if (key == null) {
+            // m=48 fn=112, monochrome a=48, scale bx=by=1, color c=49
+            writeGraphicsData(image, out, new byte[] {0x30, 0x70, 0x30, 0x01, 0x01, 0x31, xL, xH, yL, yH});
+            out.write(new byte[] {0x1D, 0x28, 0x4C, 0x02, 0x00, 0x30, 0x32});
+        } else {
+            // m=48 fn=67, raster a=48, key kc1 kc2, one color b=1, color c=49
+            writeGraphicsData(image, out, new byte[] {0x30, 0x43, 0x30, (byte)key.charAt(0), (byte)key.charAt(1), 0x01, xL, xH, yL, yH, 0x31});
+            out.write(getStoredGraphicCommand(key));
+        }
+    }
+
+    /**
+     * Writes a graphics command made of {@code params} followed by the packed image,
+     * using the four byte length of {@code GS 8 L} when it is too large for {@code GS ( L}
+     */
+    private static void writeGraphicsData(ImageWrapper image, OutputStream out, byte[] params) throws IOException {
+        int dataLength = image.getBytesPerRow() * image.getHeight();
+        int size = params.length + dataLength;
+
+        if (size <= 0xFFFF) {
+            out.write(new byte[] {0x1D, 0x28, 0x4C, (byte)(size & 0xFF), (byte)(size >> 8 & 0xFF)});
+        } else {
+            out.write(new byte[] {0x1D, 0x38, 0x4C, (byte)(size & 0xFF), (byte)(size >> 8 & 0xFF), (byte)(size >> 16 & 0xFF), (byte)(size >> 24 & 0xFF)});
+        }
+
+        out.write(params);
+        out.write(image.getPackedBits(), 0, dataLength);
+    }
+
+    /**
+     * Returns the ESC/POS command printing NV graphics stored under {@code key} by the {@code GRAPHICS} mode,
+     * so that a logo downloaded once can be printed again without resending the image.
+     */
+    public static byte[] getStoredGraphicCommand(String key) {
+        checkGraphicsKey(key);
+        // m=48 fn=69, key kc1 kc2, scale x=y=1
+        return new byte[] {0x1D, 0x28, 0x4C, 0x06, 0x00, 0x30, 0x45, (byte)key.charAt(0), (byte)key.charAt(1), 0x01, 0x01};
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code key} can't be used to store NV graphics
+     */
+    public static void checkGraphicsKey(String key) {
+        if (key.length() != 2 || key.charAt(0) < 32 || key.charAt(0) > 126 || key.charAt(1) < 32 || key.charAt(1) > 126) {
+            throw new IllegalArgumentException("Graphics key must be two printable ASCII characters: " + key);
+        }
+    }
+
+}
@@ -0,0 +1,195 @@
+package qz.printer.image;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qz.printer.ImageWrapper;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Encodes images as Evolis ribbon panels, separating the colors of the original image
+ * rather than using its monochrome bitmap.
+ * <p/>
+ * The {@code precision} option sets the levels of each color panel, and {@code overlay} adds a varnish panel
+ * from an array of rectangles, the URL of a mask image, or {@code true} to cover the whole card.
+ */
+public class EvolisEncoder implements ImageEncoder {
+
+    private static final Logger log = LoggerFactory.getLogger(EvolisEncoder.class);
+
+    @Override
+    public void encode(ImageWrapper image, JSONObject opt, OutputStream out) throws IOException {
+        byte[] overlay = null;
+        if (opt.has("overlay")) {
+            try { overlay = parseOverlay(image, opt.get("overlay")); }
+            catch(Exception e) {
+                log.error("Failed to parse overlay data: {}", e.getMessage());
+            }
+        }
+
+        writeRibbons(image, out, opt.optInt("precision", 128), overlay);
+    }
+
+    /**
+     * Separates the image into yellow, magenta, cyan and black panels in a single pass,
+     * then packs the bits of each panel (and the overlay, if any) in parallel and writes them as ribbon data.
+     *
+     * @param precision Levels of each color panel, black and overlay are always precision 2
+     * @param overlay   Overlay panel from {@link #parseOverlay(ImageWrapper, Object)}, or {@code null} for none
+     */
+    private static void writeRibbons(ImageWrapper image, OutputStream out, int precision, byte[] overlay) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        final Charset charset = image.getCharset();
+
+        // Y,M,C,K,O ribbon
+        final char[] ribbons = {'y', 'm', 'c', 'k', 'o'};
+        final int[] precisions = {precision, precision, precision, 2, 2};
+        final byte[][] panels = new byte[overlay == null? 4:5][];
+        byte[] yellow = panels[0] = new byte[width * height];
+        byte[] magenta = panels[1] = new byte[width * height];
+        byte[] cyan = panels[2] = new byte[width * height];
+        byte[] black = panels[3] = new byte[width * height];
+        if (overlay != null) { panels[4] = overlay; }
+
+        // level of a color for each value of its complementary channel
+        byte[] levels = new byte[256];
+        for(int c = 0; c < levels.length; c++) {
+            levels[c] = (byte)((1.0f - c / 255f) * (precision - 1));
+        }
+
+        BufferedImage bufferedImage = image.getBufferedImage();
+        int[] row = new int[width];
+        for(int y = 0; y < height; y++) {
+            bufferedImage.getRGB(0, y, width, 1, row, 0, width);
+            int off = y * width;
+            for(int x = 0; x < width; x++) {
+                int p = row[x];
+                if ((p & 0xFFFFFF) == 0) {
+                    black[off + x] = 1;
+                } else {
+                    cyan[off + x] = levels[(p >> 16) & 0xFF];
+                    magenta[off + x] = levels[(p >> 8) & 0xFF];
+                    yellow[off + x] = levels[p & 0xFF];
+                }
+            }
+        }
+
+        new BandWriter() {
+            @Override
+            protected byte[] encode(int panel) {
+                log.debug("Building ribbon 'Db;{};{};..'", ribbons[panel], precisions[panel]);
+
+                byte[] header = ("\u001BDb;" + ribbons[panel] + ";" + precisions[panel] + ";").getBytes(charset);
+                byte[] ribbon = new byte[header.length + panels[panel].length + 1];
+                System.arraycopy(header, 0, ribbon, 0, header.length);
+
+                int end = compactBits(precisionBits(precisions[panel]), panels[panel], ribbon, header.length);
+                panels[panel] = null;
+                ribbon[end++] = 0x0D;
+
+                return Arrays.copyOf(ribbon, end);
+            }
+        }.write(out, panels.length, (long)width * height * panels.length);
+    }
+
+    private static byte[] parseOverlay(ImageWrapper image, Object overlay) throws IOException, JSONException {
+        int width = image.getWidth();
+        byte[] overlayData = new byte[width * image.getHeight()];
+
+        if (overlay instanceof JSONArray) {
+            //array of rectangles
+            JSONArray masterBlock = (JSONArray)overlay;
+            for(int i = 0; i < masterBlock.length(); i++) {
+                JSONArray block = masterBlock.getJSONArray(i);
+                if (block != null && block.length() == 4) {
+                    for(int y = block.getInt(1) - 1; y < block.getInt(3); y++) {
+                        int off = (y * width);
+                        for(int x = block.getInt(0) - 1; x < block.getInt(2); x++) {
+                            if ((off + x) >= 0 && (off + x) < overlayData.length) {
+                                overlayData[off + x] = 1;
+                            }
+                        }
+                    }
+                }
+            }
+        } else if (overlay instanceof String) {
+            //image mask
+            BufferedImage maskImage = ImageIO.read(new URL((String)overlay));
+            int maskWidth = maskImage.getWidth();
+            if (maskWidth * maskImage.getHeight() < overlayData.length) {
+                throw new IOException("Overlay image is smaller than the image being printed");
+            }
+
+            byte[] mask = image.generateBlackPixels(maskImage);
+            int maskRowBytes = (maskWidth + 7) / 8;
+            for(int i = 0; i < overlayData.length; i++) {
+                int x = i % maskWidth;
+                boolean black = (mask[(i / maskWidth) * maskRowBytes + (x >> 3)] & (0x80 >>> (x & 7))) != 0;
+                overlayData[i] = (byte)(black? 1:0);
+            }
+        } else if (overlay instanceof Boolean && (boolean)overlay) {
+            //boolean coat
+            Arrays.fill(overlayData, (byte)1);
+        }
+
+        return overlayData;
+    }
+
+    /**
+     * Packs the levels of a ribbon panel into {@code out}, {@code bits} at a time
+     *
+     * @return the position in {@code out} after the packed panel
+     */
+    private static int compactBits(int bits, byte[] levels, byte[] out, int pos) {
+        int empty = 8 - bits;
+
+        for(int i = 0; i < levels.length; i++) {
+            byte b = 0;
+            int captured = 0;
+
+            b |= levels[i] << empty;
+            captured += 8 - empty;
+
+            while(captured < 8 && (i + 1) < levels.length) {
+                int excess = bits - empty;
+
+                if (excess > 0) { //because negative shifts don't go backwards
+                    b |= levels[i + 1] >> excess;
+                } else {
+                    b |= levels[i + 1] << Math.abs(excess);
+                }
+                captured += bits - Math.max(0, excess);
+                if (captured < 8 && excess <= 0) { i++; } //if we've eaten an entire color point but haven't filled the byte, increase index looking at
+
+                empty = 8 - excess;
+                if (empty > 8) { empty -= 8; } //wrap around so we never shift over a byte length
+            }
+
+            out[pos++] = b;
+        }
+
+        return pos;
+    }
+
+    private static int precisionBits(int precision) {
+        precision--;  // "128" is actually 0-127, subtract one
+        int ones = 0;
+        while(precision > 0) {
+            if (precision % 2 != 0) { ones++; }
+            precision /= 2;
+        }
+
+        return ones;
+    }
+
+}
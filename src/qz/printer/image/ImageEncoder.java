@@ -0,0 +1,26 @@
+package qz.printer.image;
+
+import org.codehaus.jettison.json.JSONObject;
+import qz.exception.InvalidRawImageException;
+import qz.printer.ImageWrapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Turns a converted image into the commands that print it in one printer language.
+ * <p/>
+ * Encoders are registered against the languages they handle with {@link ImageEncoders#register(ImageEncoder, qz.printer.LanguageType...)}.
+ * A single encoder may be used by several threads at once, so any state must be kept on the stack.
+ */
+public interface ImageEncoder {
+
+    /**
+     * Writes the commands printing {@code image} to {@code out} as they are encoded. The stream is left open.
+     *
+     * @param image Image converted to a packed monochrome bitmap, along with its print settings
+     * @param opt   Options of the raw print data, for settings specific to this encoder
+     */
+    void encode(ImageWrapper image, JSONObject opt, OutputStream out) throws InvalidRawImageException, IOException;
+
+}
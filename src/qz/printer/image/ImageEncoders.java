@@ -0,0 +1,43 @@
+package qz.printer.image;
+
+import qz.printer.LanguageType;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the {@link ImageEncoder} used for each printer language.
+ */
+public class ImageEncoders {
+
+    private static final Map<LanguageType, ImageEncoder> encoders = new ConcurrentHashMap<>();
+
+    static {
+        register(new EscPosEncoder(), LanguageType.ESCP, LanguageType.ESCP2, LanguageType.ESCPOS);
+        register(new ZplEncoder(), LanguageType.ZPL, LanguageType.ZPLII);
+        register(new EplEncoder(), LanguageType.EPL, LanguageType.EPL2);
+        register(new CpclEncoder(), LanguageType.CPCL);
+        register(new EvolisEncoder(), LanguageType.EVOLIS);
+        register(new BrotherRasterEncoder(), LanguageType.BRASTER);
+        register(new SbplEncoder(), LanguageType.SBPL);
+    }
+
+    private ImageEncoders() {}
+
+    /**
+     * Uses {@code encoder} for images printed in any of {@code languages}, replacing any encoder registered before
+     */
+    public static void register(ImageEncoder encoder, LanguageType... languages) {
+        for(LanguageType language : languages) {
+            encoders.put(language, encoder);
+        }
+    }
+
+    /**
+     * @return The encoder for {@code language}, or {@code null} if images can't be printed in it
+     */
+    public static ImageEncoder get(LanguageType language) {
+        return encoders.get(language);
+    }
+
+}
@@ -0,0 +1,74 @@
+package qz.printer.image;
+
+import qz.common.Constants;
+import qz.printer.ImageWrapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the packed bitmap of an image as it is, for the languages that take it without any further encoding.
+ */
+class PackedRows {
+
+    // Rows per band for languages that encode each row on its own
+    static final int BAND_ROWS = 64;
+
+    private PackedRows() {}
+
+    /**
+     * Writes the packed image as binary, straight from the bitmap when black dots are sent as 1's.
+     * <p/>
+     * It makes most sense to have black pixels as 1's and white pixels
+     * as zero's, however some printer manufacturers had this reversed
+     * and used 0's for the black pixels.  EPL is a common language that
+     * uses 0's for black pixels, so for those the bits are flipped a chunk at a time on the way.
+     * See also: https://support.zebra.com/cpws/docs/eltron/gw_command.htm
+     */
+    static void writeBytes(ImageWrapper image, OutputStream out) throws IOException {
+        byte[] bits = image.getPackedBits();
+        int length = image.getBytesPerRow() * image.getHeight();
+        if (!image.getLanguageType().requiresImageOutputInverted()) {
+            out.write(bits, 0, length);
+            return;
+        }
+
+        byte[] chunk = new byte[Math.min(length, 8192)];
+        for(int offset = 0; offset < length; offset += chunk.length) {
+            int count = Math.min(chunk.length, length - offset);
+            for(int i = 0; i < count; i++) {
+                chunk[i] = (byte)~bits[offset + i];
+            }
+            out.write(chunk, 0, count);
+        }
+    }
+
+    /**
+     * Writes the packed image as hexadecimal text, two characters per byte, encoded in bands of rows
+     */
+    static void writeHex(ImageWrapper image, OutputStream out) throws IOException {
+        final byte[] bits = image.getPackedBits();
+        final int bytesPerRow = image.getBytesPerRow();
+        final int height = image.getHeight();
+        final int invert = image.getLanguageType().requiresImageOutputInverted()? 0xFF:0;
+
+        new BandWriter() {
+            @Override
+            protected byte[] encode(int band) {
+                int start = band * BAND_ROWS * bytesPerRow;
+                int end = Math.min(height, (band + 1) * BAND_ROWS) * bytesPerRow;
+
+                byte[] hex = new byte[(end - start) * 2];
+                int pos = 0;
+                for(int i = start; i < end; i++) {
+                    int v = (bits[i] ^ invert) & 0xFF;
+                    hex[pos++] = (byte)Constants.HEXES_ARRAY[v >>> 4];
+                    hex[pos++] = (byte)Constants.HEXES_ARRAY[v & 0x0F];
+                }
+
+                return hex;
+            }
+        }.write(out, (height + BAND_ROWS - 1) / BAND_ROWS, (long)image.getWidth() * height);
+    }
+
+}
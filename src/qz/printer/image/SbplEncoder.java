@@ -0,0 +1,40 @@
+package qz.printer.image;
+
+import org.codehaus.jettison.json.JSONObject;
+import qz.printer.ImageWrapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Encodes images as an SBPL {@code GB} graphic, positioned with {@code H} and {@code V}.
+ * <p/>
+ * SBPL graphics are sized in blocks of 8 dots, so the image is padded on the bottom with blank rows as it is written.
+ */
+public class SbplEncoder implements ImageEncoder {
+
+    @Override
+    public void encode(ImageWrapper image, JSONObject opt, OutputStream out) throws IOException {
+        int height = (image.getHeight() + 7) / 8 * 8;
+
+        StringBuilder sbpl = new StringBuilder()
+                .append('\u001B').append("H").append(image.getxPos())
+                .append('\u001B').append("V").append(image.getyPos())
+                .append('\u001B').append("GB")
+                .append(String.format("%03d", image.getWidth() / 8))
+                .append(String.format("%03d", height / 8));
+
+        out.write(sbpl.toString().getBytes(image.getCharset()));
+        PackedRows.writeBytes(image, out);
+
+        if (height > image.getHeight()) {
+            byte[] blank = new byte[(height - image.getHeight()) * image.getBytesPerRow()];
+            if (image.getLanguageType().requiresImageOutputInverted()) {
+                Arrays.fill(blank, (byte)0xFF);
+            }
+            out.write(blank);
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+package qz.printer.image;
+
+import org.apache.commons.ssl.Base64;
+import org.codehaus.jettison.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qz.common.ByteArrayBuilder;
+import qz.common.Constants;
+import qz.printer.ImageWrapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+import static qz.printer.image.PackedRows.BAND_ROWS;
+
+/**
+ * Encodes images as a ZPL {@code ^GFA} graphic field, compressed as set by {@link ImageWrapper#setCompression(ImageWrapper.Compression)}.
+ */
+public class ZplEncoder implements ImageEncoder {
+
+    private static final Logger log = LoggerFactory.getLogger(ZplEncoder.class);
+
+    @Override
+    public void encode(ImageWrapper image, JSONObject opt, OutputStream out) throws IOException {
+        int byteLen = image.getBytesPerRow() * image.getHeight();
+        int perRow = byteLen / image.getHeight();
+        StringBuilder zpl = new StringBuilder("^GFA,")
+                .append(byteLen).append(",").append(byteLen).append(",")
+                .append(perRow).append(",");
+
+        out.write(zpl.toString().getBytes(image.getCharset()));
+
+        switch(image.getCompression()) {
+            case ASCII:
+                writeAsciiRows(image, out);
+                break;
+            case Z64:
+                out.write(encodeZ64(image));
+                break;
+            case AUTO:
+                ByteArrayBuilder ascii = new ByteArrayBuilder(byteLen / 4);
+                writeAsciiRows(image, ascii.getOutputStream());
+                byte[] z64 = encodeZ64(image);
+                int hexLength = byteLen * 2;
+
+                log.debug("ZPL graphic sizes: hex {}, ascii {}, z64 {}", hexLength, ascii.getLength(), z64.length);
+                if (hexLength <= ascii.getLength() && hexLength <= z64.length) {
+                    PackedRows.writeHex(image, out);
+                } else if (ascii.getLength() <= z64.length) {
+                    out.write(ascii.getByteArray());
+                } else {
+                    out.write(z64);
+                }
+                break;
+            case NONE:
+            default:
+                PackedRows.writeHex(image, out);
+        }
+    }
+
+    /**
+     * Writes the image using ZPL's ASCII compression: runs of a hex digit are prefixed with a repeat count,
+     * a row ending in zeros or ones is closed with {@code ,} or {@code !}, and {@code :} repeats the previous row.
+     */
+    private static void writeAsciiRows(ImageWrapper image, OutputStream out) throws IOException {
+        final byte[] bits = image.getPackedBits();
+        final int bytesPerRow = image.getBytesPerRow();
+        final int height = image.getHeight();
+        final int invert = image.getLanguageType().requiresImageOutputInverted()? 0xFF:0;
+
+        new BandWriter() {
+            @Override
+            protected byte[] encode(int band) {
+                ByteArrayBuilder rows = new ByteArrayBuilder(BAND_ROWS * 4);
+                byte[] row = new byte[bytesPerRow * 2 + 1]; //compressed rows never use more than one character per digit, plus the fill
+                int end = Math.min(height, (band + 1) * BAND_ROWS);
+
+                for(int y = band * BAND_ROWS; y < end; y++) {
+                    int start = y * bytesPerRow;
+                    if (y > 0 && isSameRow(bits, start - bytesPerRow, start, bytesPerRow)) {
+                        rows.append(new byte[] {':'});
+                        continue;
+                    }
+
+                    //find where the row's trailing zeros or ones start
+                    int nibbles = bytesPerRow * 2;
+                    int last = nibble(bits, start, nibbles - 1, invert);
+                    int fillFrom = nibbles;
+                    while(fillFrom > 0 && nibble(bits, start, fillFrom - 1, invert) == last && (last == 0 || last == 0xF)) {
+                        fillFrom--;
+                    }
+
+                    int pos = 0;
+                    int i = 0;
+                    while(i < fillFrom) {
+                        int digit = nibble(bits, start, i, invert);
+                        int run = 1;
+                        while(i + run < fillFrom && nibble(bits, start, i + run, invert) == digit) { run++; }
+
+                        pos = appendRun(row, pos, run, Constants.HEXES_ARRAY[digit]);
+                        i += run;
+                    }
+                    if (fillFrom < nibbles) {
+                        row[pos++] = (byte)(last == 0? ',':'!');
+                    }
+
+                    rows.append(row, 0, pos);
+                }
+
+                return rows.getByteArray();
+            }
+        }.write(out, (height + BAND_ROWS - 1) / BAND_ROWS, (long)image.getWidth() * height);
+    }
+
+    private static int nibble(byte[] bits, int rowStart, int index, int invert) {
+        int b = (bits[rowStart + (index >> 1)] ^ invert) & 0xFF;
+        return (index & 1) == 0? b >>> 4:b & 0x0F;
+    }
+
+    private static boolean isSameRow(byte[] bits, int previousStart, int start, int bytesPerRow) {
+        for(int i = 0; i < bytesPerRow; i++) {
+            if (bits[previousStart + i] != bits[start + i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Writes {@code run} repeats of {@code digit} into {@code out}, using the counts
+     * {@code G}-{@code Y} for 1-19 and {@code g}-{@code z} for 20-400 when shorter than the digits themselves
+     *
+     * @return the position after the last character written
+     */
+    private static int appendRun(byte[] out, int pos, int run, char digit) {
+        if (run < 3) {
+            for(int i = 0; i < run; i++) {
+                out[pos++] = (byte)digit;
+            }
+            return pos;
+        }
+
+        while(run > 0) {
+            int count = Math.min(run, 419);
+            if (count / 20 > 0) { out[pos++] = (byte)('g' + count / 20 - 1); }
+            if (count % 20 > 0) { out[pos++] = (byte)('G' + count % 20 - 1); }
+            out[pos++] = (byte)digit;
+            run -= count;
+        }
+
+        return pos;
+    }
+
+    /**
+     * Encodes the image as {@code :Z64:<base64 of deflated data>:<crc>}, with the CRC-16 taken over the base64 text
+     */
+    private static byte[] encodeZ64(ImageWrapper image) {
+        int length = image.getBytesPerRow() * image.getHeight();
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.setInput(image.getPackedBits(), 0, length);
+        deflater.finish();
+
+        ByteArrayBuilder deflated = new ByteArrayBuilder(length / 4);
+        byte[] chunk = new byte[8192];
+        while(!deflater.finished()) {
+            int len = deflater.deflate(chunk);
+            deflated.append(chunk, 0, len);
+        }
+        deflater.end();
+
+        byte[] encoded = Base64.encodeBase64(deflated.getByteArray(), false);
+        String crc = String.format("%04x", crc16(encoded));
+
+        return new ByteArrayBuilder(encoded.length + 11)
+                .append(new byte[] {':', 'Z', '6', '4', ':'})
+                .append(encoded)
+                .append(new byte[] {':'})
+                .append(crc.getBytes(StandardCharsets.US_ASCII))
+                .getByteArray();
+    }
+
+    /**
+     * CRC-16/XMODEM, polynomial {@code 0x1021} starting from zero, as expected by ZPL's Z64 graphics
+     */
+    private static int crc16(byte[] data) {
+        int crc = 0;
+        for(byte b : data) {
+            crc ^= (b & 0xFF) << 8;
+            for(int i = 0; i < 8; i++) {
+                crc = (crc & 0x8000) != 0? (crc << 1) ^ 0x1021:crc << 1;
+            }
+        }
+
+        return crc & 0xFFFF;
+    }
+
+}
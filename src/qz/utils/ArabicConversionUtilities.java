@@ -5,12 +5,12 @@ import com.ibm.icu.charset.CharsetProviderICU;
 import com.ibm.icu.text.ArabicShaping;
 import com.ibm.icu.text.ArabicShapingException;
 import com.ibm.icu.text.Bidi;
+import qz.common.ByteArrayBuilder;
 
-import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
-import java.nio.charset.CoderResult;
+import java.nio.charset.CharsetEncoder;
 import java.nio.charset.StandardCharsets;
 
 /**
@@ -18,6 +18,23 @@ import java.nio.charset.StandardCharsets;
  */
 public class ArabicConversionUtilities {
 
+    //Creating these is expensive, both are safe to share between threads
+    private static final Charset IBM864 = new CharsetProviderICU().charsetForName("IBM864");
+    private static final ArabicShaping SHAPING = new ArabicShaping(ArabicShaping.LETTERS_SHAPE | ArabicShaping.TEXT_DIRECTION_VISUAL_LTR | ArabicShaping.LENGTH_GROW_SHRINK);
+
+    /**
+     * Creates an IBM864 encoder for use with {@link #appendIBM864(ByteArrayBuilder, String, CharsetEncoder)}.
+     * Encoders are not thread safe, callers should keep one per job.
+     *
+     * @return a new ICU encoder for IBM864
+     */
+    public static CharsetEncoder newIBM864Encoder() {
+        CharsetEncoderICU icuc = (CharsetEncoderICU)IBM864.newEncoder();
+        //We need to use fallback for some character forms that can not be found
+        icuc.setFallbackUsed(true);
+        return icuc;
+    }
+
     /**
      * This is the simplest and most reliable method:
      * If all characters on input string does not contain any Arabic letters then return it as it is,
@@ -30,60 +47,55 @@ public class ArabicConversionUtilities {
      * @return encoded bytes
      */
     public static byte[] convertToIBM864(String escp_or_text) throws CharacterCodingException, ArabicShapingException {
+        return appendIBM864(new ByteArrayBuilder(escp_or_text.length()), escp_or_text, newIBM864Encoder()).getByteArray();
+    }
+
+    /**
+     * Same as {@link #convertToIBM864(String)}, but encodes directly into {@code out} with a reusable encoder
+     *
+     * @param out          builder to append the encoded bytes to
+     * @param escp_or_text a String that contains only ESC/P code or only text
+     * @param encoder      encoder from {@link #newIBM864Encoder()}
+     * @return {@code out}
+     */
+    public static ByteArrayBuilder appendIBM864(ByteArrayBuilder out, String escp_or_text, CharsetEncoder encoder) throws CharacterCodingException, ArabicShapingException {
         boolean allAscii = true;
         for(int i = 0; i < escp_or_text.length(); i++) {
             //https://wiki.sei.cmu.edu/confluence/display/java/STR01-J.+Do+not+assume+that+a+Java+char+fully+represents+a+Unicode+code+point
             int ch = escp_or_text.codePointAt(i);
             if (ch > 255) {
                 allAscii = false;
+                break;
             }
         }
 
         if (allAscii) {
             //we use 'ISO-8859-1' that will map bytes as it is
-            return escp_or_text.getBytes(StandardCharsets.ISO_8859_1);
+            return out.append(escp_or_text.getBytes(StandardCharsets.ISO_8859_1));
         } else {
             //Layout the characters from logical order to visual ordering
             Bidi para = new Bidi();
             para.setPara(escp_or_text, Bidi.LEVEL_DEFAULT_LTR, null);
             String data = para.writeReordered(Bidi.DO_MIRRORING);
-            return convertVisualOrderedToIBM864(data);
+            return appendVisualOrderedIBM864(out, data, encoder);
         }
     }
 
     /**
      * Shape a visual ordered Arabic string and then encode it in IBM864 encoding
      *
-     * @param str input string
-     * @return encoded bytes
+     * @param out     builder to append the encoded bytes to
+     * @param str     input string
+     * @param encoder encoder from {@link #newIBM864Encoder()}
+     * @return {@code out}
      */
-    private static byte[] convertVisualOrderedToIBM864(String str) throws ArabicShapingException, CharacterCodingException {
+    private static ByteArrayBuilder appendVisualOrderedIBM864(ByteArrayBuilder out, String str, CharsetEncoder encoder) throws ArabicShapingException, CharacterCodingException {
         //We shape the characters to map it to Unicode in FExx range
         //Note that the output of Bidi is VISUAL_LTR, so we need the flag: ArabicShaping.TEXT_DIRECTION_VISUAL_LTR)
-        ArabicShaping as = new ArabicShaping(ArabicShaping.LETTERS_SHAPE | ArabicShaping.TEXT_DIRECTION_VISUAL_LTR | ArabicShaping.LENGTH_GROW_SHRINK);
-        String shaped = as.shape(str);
+        String shaped = SHAPING.shape(str);
 
         //then we need to convert it to IBM864 using ICU Encoder
-        CharsetProviderICU icu = new CharsetProviderICU();
-        Charset cs = icu.charsetForName("IBM864");
-        CharsetEncoderICU icuc = (CharsetEncoderICU)cs.newEncoder();
-
-        //We need to use fallback for some character forms that can not be found
-        icuc.setFallbackUsed(true);
-        ByteBuffer output = ByteBuffer.allocate(shaped.length() * 2);
-        CharBuffer inp = CharBuffer.wrap(shaped);
-        CoderResult res = icuc.encode(inp, output, true);
-        if (res.isError()) {
-            res.throwException();
-        }
-
-        int length = output.position();
-        byte all[] = output.array();
-
-        byte out[] = new byte[length];
-        System.arraycopy(all, 0, out, 0, length);
-
-        return out;
+        return out.append(CharBuffer.wrap(shaped), encoder);
     }
 
 }
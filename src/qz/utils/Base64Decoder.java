@@ -0,0 +1,176 @@
+package qz.utils;
+
+import qz.common.ByteArrayBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Table driven base64 decoder which reads characters directly, without first copying them into a byte array,
+ * and writes the decoded bytes into a {@link ByteArrayBuilder}.
+ * <p/>
+ * Decoding is stateful, so input may be given in any number of chunks followed by a call to {@link #finish()}.
+ * Input is handled the same way as commons-codec: both the standard and url-safe alphabets are accepted,
+ * other characters are skipped, and decoding stops at the first padding character.
+ * Objects of this class are not thread safe.
+ */
+public class Base64Decoder {
+
+    private static final char PAD = '=';
+    // Characters decoded at a time when writing to a stream
+    private static final int STREAM_CHARS = 64 * 1024;
+    private static final byte[] DECODE_TABLE = new byte[128];
+
+    static {
+        Arrays.fill(DECODE_TABLE, (byte)-1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for(int i = 0; i < alphabet.length(); i++) {
+            DECODE_TABLE[alphabet.charAt(i)] = (byte)i;
+        }
+        DECODE_TABLE['-'] = 62;
+        DECODE_TABLE['_'] = 63;
+    }
+
+    private ByteArrayBuilder out;
+    private byte[] chunk = new byte[8192];
+    private int chunkLength;
+
+    private int bits;
+    private int modulus;
+    private boolean eof;
+
+
+    /**
+     * @param out Builder that decoded bytes are appended to
+     */
+    public Base64Decoder(ByteArrayBuilder out) {
+        this.out = out;
+    }
+
+    /**
+     * Decodes {@code str} in full and appends the result to {@code out}
+     *
+     * @return {@code out}
+     */
+    public static ByteArrayBuilder decode(CharSequence str, ByteArrayBuilder out) {
+        out.ensureCapacity(out.getLength() + str.length() / 4 * 3 + 3);
+        return new Base64Decoder(out).update(str, 0, str.length()).finish();
+    }
+
+    /**
+     * Decodes {@code str} in full into a new builder
+     */
+    public static ByteArrayBuilder decode(CharSequence str) {
+        return decode(str, new ByteArrayBuilder(str.length() / 4 * 3 + 3));
+    }
+
+    /**
+     * Decodes {@code str} in full to {@code out} a chunk at a time, so the decoded bytes are never all held in memory
+     */
+    public static void decode(CharSequence str, OutputStream out) throws IOException {
+        ByteArrayBuilder buffer = new ByteArrayBuilder(STREAM_CHARS / 4 * 3 + 3);
+        Base64Decoder decoder = new Base64Decoder(buffer);
+
+        for(int start = 0; start < str.length(); start += STREAM_CHARS) {
+            decoder.update(str, start, Math.min(str.length(), start + STREAM_CHARS)).flush();
+            buffer.writeTo(out);
+            buffer.clear();
+        }
+
+        decoder.finish();
+        buffer.writeTo(out);
+    }
+
+    /**
+     * Checks that {@code str} only contains base64 characters, padding or whitespace, without copying it
+     */
+    public static boolean isBase64(CharSequence str) {
+        for(int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c >= DECODE_TABLE.length || (DECODE_TABLE[c] < 0 && c != PAD && c != ' ' && c != '\n' && c != '\r' && c != '\t')) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Decodes characters {@code start} to {@code end} of {@code str}
+     *
+     * @return this decoder
+     */
+    public Base64Decoder update(CharSequence str, int start, int end) {
+        for(int i = start; i < end && !eof; i++) {
+            decode(str.charAt(i));
+        }
+
+        return this;
+    }
+
+    /**
+     * Decodes {@code length} characters of {@code chars}, starting at {@code offset}
+     *
+     * @return this decoder
+     */
+    public Base64Decoder update(char[] chars, int offset, int length) {
+        int end = offset + length;
+        for(int i = offset; i < end && !eof; i++) {
+            decode(chars[i]);
+        }
+
+        return this;
+    }
+
+    private void decode(char c) {
+        if (c == PAD) {
+            eof = true;
+            return;
+        }
+        if (c >= DECODE_TABLE.length || DECODE_TABLE[c] < 0) {
+            return;
+        }
+
+        bits = (bits << 6) | DECODE_TABLE[c];
+        if (++modulus == 4) {
+            if (chunkLength + 3 > chunk.length) { flush(); }
+            chunk[chunkLength++] = (byte)(bits >> 16);
+            chunk[chunkLength++] = (byte)(bits >> 8);
+            chunk[chunkLength++] = (byte)bits;
+            bits = 0;
+            modulus = 0;
+        }
+    }
+
+    /**
+     * Appends any bytes decoded so far to the output, without ending the input
+     *
+     * @return the output builder
+     */
+    public ByteArrayBuilder flush() {
+        out.append(chunk, 0, chunkLength);
+        chunkLength = 0;
+        return out;
+    }
+
+    /**
+     * Ends the input, decoding any partial group left over from missing padding
+     *
+     * @return the output builder
+     */
+    public ByteArrayBuilder finish() {
+        flush();
+        if (modulus == 2) {
+            out.append(new byte[] {(byte)(bits >> 4)});
+        } else if (modulus == 3) {
+            out.append(new byte[] {(byte)(bits >> 10), (byte)(bits >> 2)});
+        }
+
+        bits = 0;
+        modulus = 0;
+        eof = true;
+        return out;
+    }
+
+}
@@ -13,6 +13,7 @@ import qz.common.ByteArrayBuilder;
 import qz.common.Constants;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -26,6 +27,16 @@ import java.util.List;
  */
 public class ByteUtilities {
 
+    private static final byte[] HEX_TABLE = new byte[128];
+
+    static {
+        Arrays.fill(HEX_TABLE, (byte)-1);
+        for(int i = 0; i < 16; i++) {
+            HEX_TABLE[Character.forDigit(i, 16)] = (byte)i;
+            HEX_TABLE[Character.toUpperCase(Character.forDigit(i, 16))] = (byte)i;
+        }
+    }
+
     /**
      * Converts a hexadecimal string to a byte array.
      * <p/>
@@ -61,6 +72,94 @@ public class ByteUtilities {
         return data;
     }
 
+    /**
+     * Same as {@link #hexStringToByteArray(String)}, but decodes straight into {@code out} using a lookup table.
+     * <p/>
+     * Plain digit pairs and {@code x} separated values of up to two digits are decoded directly,
+     * anything else is handed to {@link #hexStringToByteArray(String)} so that results never differ.
+     *
+     * @param hex Base 16 String to convert
+     * @param out Builder to append the bytes to
+     * @return {@code out}
+     */
+    public static ByteArrayBuilder hexStringToByteArray(String hex, ByteArrayBuilder out) throws NumberFormatException {
+        if (hex == null || hex.length() <= 2) {
+            return out.append(hexStringToByteArray(hex));
+        }
+
+        int start = out.getLength();
+        boolean decoded;
+        if (hex.indexOf('x') >= 0) {
+            decoded = appendSeparatedHex(hex, out);
+        } else {
+            out.ensureCapacity(start + (hex.length() + 1) / 2);
+            decoded = appendPairedHex(hex, out);
+        }
+
+        if (!decoded) {
+            out.clearRange(start, out.getLength());
+            out.append(hexStringToByteArray(hex));
+        }
+
+        return out;
+    }
+
+    private static boolean appendPairedHex(String hex, ByteArrayBuilder out) {
+        byte[] chunk = new byte[Math.min(8192, (hex.length() + 1) / 2)];
+        int length = 0;
+
+        for(int i = 0; i < hex.length(); i += 2) {
+            int high = hexDigit(hex.charAt(i));
+            int low = i + 1 < hex.length()? hexDigit(hex.charAt(i + 1)):0;
+            if (high < 0 || low < 0) { return false; }
+
+            if (length == chunk.length) {
+                out.append(chunk, 0, length);
+                length = 0;
+            }
+            //a trailing single digit is its own value, as with the regex split
+            chunk[length++] = (byte)(i + 1 < hex.length()? (high << 4) | low:high);
+        }
+
+        out.append(chunk, 0, length);
+        return true;
+    }
+
+    private static boolean appendSeparatedHex(String hex, ByteArrayBuilder out) {
+        int end = hex.length();
+        int pos = 0;
+        if (hex.charAt(pos) == 'x') { pos++; }
+        if (hex.charAt(end - 1) == 'x') { end--; }
+
+        byte[] chunk = new byte[Math.min(8192, hex.length() / 2 + 1)];
+        int length = 0;
+
+        while(pos < end) {
+            int value = 0;
+            int digits = 0;
+            while(pos < end && hex.charAt(pos) != 'x') {
+                int digit = hexDigit(hex.charAt(pos++));
+                if (digit < 0 || ++digits > 2) { return false; }
+                value = (value << 4) | digit;
+            }
+            if (digits == 0) { return false; }
+
+            if (length == chunk.length) {
+                out.append(chunk, 0, length);
+                length = 0;
+            }
+            chunk[length++] = (byte)value;
+            pos++; //skip separator
+        }
+
+        out.append(chunk, 0, length);
+        return true;
+    }
+
+    private static int hexDigit(char c) {
+        return c < HEX_TABLE.length? HEX_TABLE[c]:-1;
+    }
+
     public static String bytesToHex(byte[] bytes) {
         return bytesToHex(bytes, true);
     }
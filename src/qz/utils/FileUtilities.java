@@ -12,18 +12,19 @@ package qz.utils;
 import org.apache.commons.io.Charsets;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.DOMException;
-import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 import qz.common.ByteArrayBuilder;
 import qz.common.Constants;
-import qz.exception.NullCommandException;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.*;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
 
 
@@ -101,18 +102,49 @@ public class FileUtilities {
     }
 
     public static byte[] readRawFile(String url) throws IOException {
+        File local = getLocalFile(url);
+        if (local != null) {
+            //map local files straight into a single array, avoiding intermediate read buffers
+            try(FileChannel in = FileChannel.open(local.toPath(), StandardOpenOption.READ)) {
+                ByteArrayBuilder cmds = new ByteArrayBuilder((int)in.size());
+                cmds.append(in.map(FileChannel.MapMode.READ_ONLY, 0, in.size()));
+                return cmds.getByteArray();
+            }
+        }
+
         return readFile(new DataInputStream(new URL(url).openStream()));
     }
 
+    /**
+     * Returns the file referenced by {@code url} if it is a {@code file:} URL of an existing, readable file
+     *
+     * @param url location of the file
+     * @return the matching {@code File}, or {@code null} if the url is remote or cannot be read directly
+     */
+    public static File getLocalFile(String url) {
+        try {
+            URL location = new URL(url);
+            if ("file".equalsIgnoreCase(location.getProtocol())) {
+                File file = new File(location.toURI());
+                if (file.isFile() && file.canRead()) {
+                    return file;
+                }
+            }
+        }
+        catch(MalformedURLException | URISyntaxException | IllegalArgumentException e) {
+            log.trace("{} is not a local file url", url);
+        }
+
+        return null;
+    }
+
     private static byte[] readFile(DataInputStream in) throws IOException {
-        ByteArrayBuilder cmds = new ByteArrayBuilder();
+        ByteArrayBuilder cmds = new ByteArrayBuilder(Constants.BYTE_BUFFER_SIZE);
         byte[] buffer = new byte[Constants.BYTE_BUFFER_SIZE];
 
         int len;
         while((len = in.read(buffer)) > -1) {
-            byte[] temp = new byte[len];
-            System.arraycopy(buffer, 0, temp, 0, len);
-            cmds.append(temp);
+            cmds.append(buffer, 0, len);
         }
         in.close();
 
@@ -121,26 +153,69 @@ public class FileUtilities {
 
 
     /**
-     * Reads an XML file from URL, searches for the tag specified by
-     * {@code dataTag} tag name and returns the {@code String} value
-     * of that tag.
+     * Streams an XML file from URL, searches for the tag specified by
+     * {@code dataTag} tag name and writes the base64 decoded value
+     * of that tag to {@code out}.
+     * <p/>
+     * Neither the document nor the tag's value are ever held in memory,
+     * so any size of file can be read.
      *
      * @param url     location of the xml file to be read
      * @param dataTag tag in the file to be searched
-     * @return value of the tag if found
+     * @param out     stream to write the decoded value to, left open
      */
-    public static String readXMLFile(String url, String dataTag) throws DOMException, IOException, NullCommandException,
-                                                                        ParserConfigurationException, SAXException {
-        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(url);
-        doc.getDocumentElement().normalize();
-        log.info("Root element " + doc.getDocumentElement().getNodeName());
-
-        NodeList nodeList = doc.getElementsByTagName(dataTag);
-        if (nodeList.getLength() > 0) {
-            return nodeList.item(0).getTextContent();
+    public static void decodeXMLFile(String url, String dataTag, OutputStream out) throws IOException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false); //hand over large values in pieces
+
+        try(InputStream in = new URL(url).openStream()) {
+            XMLStreamReader reader = factory.createXMLStreamReader(url, in);
+            try {
+                ByteArrayBuilder decoded = new ByteArrayBuilder(Constants.BYTE_BUFFER_SIZE);
+                Base64Decoder decoder = new Base64Decoder(decoded);
+                int depth = 0;
+
+                while(reader.hasNext()) {
+                    switch(reader.next()) {
+                        case XMLStreamConstants.START_ELEMENT:
+                            if (depth > 0 || isTag(reader, dataTag)) { depth++; }
+                            break;
+                        case XMLStreamConstants.END_ELEMENT:
+                            if (depth > 0 && --depth == 0) {
+                                decoder.finish().writeTo(out);
+                                return;
+                            }
+                            break;
+                        case XMLStreamConstants.CHARACTERS:
+                        case XMLStreamConstants.CDATA:
+                        case XMLStreamConstants.SPACE:
+                            if (depth > 0) {
+                                decoder.update(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                                decoder.flush().writeTo(out);
+                                decoded.clear();
+                            }
+                            break;
+                    }
+                }
+            }
+            finally {
+                reader.close();
+            }
+        }
+        catch(XMLStreamException e) {
+            throw new IOException(e);
         }
 
-        throw new NullCommandException(String.format("Node \"%s\" could not be found in XML file specified", dataTag));
+        throw new IOException(String.format("Node \"%s\" could not be found in XML file specified", dataTag));
+    }
+
+    /** Matches element names the same way as {@link org.w3c.dom.Document#getElementsByTagName(String)} */
+    private static boolean isTag(XMLStreamReader reader, String dataTag) {
+        if ("*".equals(dataTag)) { return true; }
+
+        String prefix = reader.getPrefix();
+        String name = prefix == null || prefix.isEmpty()? reader.getLocalName():prefix + ":" + reader.getLocalName();
+        return name.equals(dataTag);
     }
 
 
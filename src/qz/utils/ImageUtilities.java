@@ -0,0 +1,134 @@
+package qz.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Iterator;
+
+/**
+ * Utilities for decoding images to the size they will be printed at, rather than at their full resolution.
+ */
+public class ImageUtilities {
+
+    private static final Logger log = LoggerFactory.getLogger(ImageUtilities.class);
+
+
+    /**
+     * Reads the image at {@code url}, as {@link #readImage(InputStream, Rectangle, int, int)}
+     */
+    public static BufferedImage readImage(URL url, Rectangle region, int targetWidth, int targetHeight) throws IOException {
+        InputStream in;
+        try {
+            in = url.openStream();
+        }
+        catch(IOException e) {
+            //same as ImageIO.read(URL), so missing files can still be told apart
+            throw new IIOException("Can't get input stream from URL!", e);
+        }
+
+        try {
+            return readImage(in, region, targetWidth, targetHeight);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Decodes only as much of an image as is needed to draw it at {@code targetWidth} x {@code targetHeight}.
+     * <p/>
+     * Pixels outside of {@code region} are never decoded, and rows and columns are skipped by the largest
+     * whole factor that keeps the result at least as large as the target, so it may still need scaling to fit exactly.
+     * With no region or target this is the same as {@link ImageIO#read(InputStream)}.
+     *
+     * @param region       Area of the source image to decode, or {@code null} for all of it
+     * @param targetWidth  Width the image will be drawn at, or {@code -1} if not limited
+     * @param targetHeight Height the image will be drawn at, or {@code -1} if not limited
+     * @return The decoded image, or {@code null} if no reader understands the data
+     */
+    public static BufferedImage readImage(InputStream in, Rectangle region, int targetWidth, int targetHeight) throws IOException {
+        ImageInputStream stream = ImageIO.createImageInputStream(in);
+        if (stream == null) { throw new IIOException("Can't create an ImageInputStream!"); }
+
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) { return null; }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+
+                Rectangle area = new Rectangle(0, 0, reader.getWidth(0), reader.getHeight(0));
+                if (region != null) {
+                    area = area.intersection(region);
+                    if (area.isEmpty()) { throw new IIOException("Image region is outside of the image"); }
+                    param.setSourceRegion(area);
+                }
+
+                int factor = getSubsampling(area.width, area.height, targetWidth, targetHeight);
+                if (factor > 1) {
+                    param.setSourceSubsampling(factor, factor, 0, 0);
+                }
+
+                log.debug("Decoding {}x{} of {}x{} image, keeping 1 in {} pixels", area.width, area.height, reader.getWidth(0), reader.getHeight(0), factor);
+                return reader.read(0, param);
+            }
+            finally {
+                reader.dispose();
+            }
+        }
+        finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * @return The largest subsampling of a {@code width} x {@code height} image that is not smaller than the target
+     */
+    private static int getSubsampling(int width, int height, int targetWidth, int targetHeight) {
+        int factor = Integer.MAX_VALUE;
+        if (targetWidth > 0) { factor = Math.min(factor, width / targetWidth); }
+        if (targetHeight > 0) { factor = Math.min(factor, height / targetHeight); }
+
+        return factor == Integer.MAX_VALUE? 1:Math.max(1, factor);
+    }
+
+    /**
+     * Scales {@code image} down to fit within {@code maxWidth} x {@code maxHeight}, keeping its aspect ratio.
+     *
+     * @param maxWidth  Largest width, or {@code -1} if not limited
+     * @param maxHeight Largest height, or {@code -1} if not limited
+     * @return The scaled image, or {@code image} itself if it already fits
+     */
+    public static BufferedImage scaleToFit(BufferedImage image, int maxWidth, int maxHeight) {
+        double scale = 1;
+        if (maxWidth > 0) { scale = Math.min(scale, (double)maxWidth / image.getWidth()); }
+        if (maxHeight > 0) { scale = Math.min(scale, (double)maxHeight / image.getHeight()); }
+        if (scale >= 1) { return image; }
+
+        int width = Math.max(1, (int)(image.getWidth() * scale));
+        int height = Math.max(1, (int)(image.getHeight() * scale));
+        log.debug("Scaling image down to {}x{}", width, height);
+
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2d = scaled.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g2d.drawImage(image, 0, 0, width, height, null);
+        g2d.dispose();
+
+        return scaled;
+    }
+
+}
@@ -1,7 +1,5 @@
 package qz.utils;
 
-import qz.common.ByteArrayBuilder;
-
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.util.Arrays;
@@ -119,24 +117,57 @@ public class Packbits
     final static int RLE = 1;
     final static int MAX_LENGTH = 127;
 
+    /**
+     * Compresses all of {@code inb} into a new array.
+     *
+     * @see #packbits(byte[], int, int, byte[], int)
+     */
     public static byte[] packbits(byte[] inb)
             throws ArrayStoreException, ArrayIndexOutOfBoundsException
     {
+        byte[] outb = new byte[maxPackedLength(inb.length)];
+        return Arrays.copyOf(outb, packbits(inb, 0, inb.length, outb, 0));
+    }
+
+    /**
+     * @return Size of an output buffer large enough for any {@code length} bytes of input
+     */
+    public static int maxPackedLength(int length) {
+        // a single byte copy run followed by a two byte replicate run is the worst case
+        return length * 4 / 3 + 2;
+    }
+
+    /**
+     * Compresses {@code len} bytes of {@code inb} starting at {@code off}, without allocating.
+     *
+     * @param outb output buffer, which must have room for {@link #maxPackedLength(int)} bytes after {@code outOff}
+     * @return the number of compressed bytes written to {@code outb}
+     */
+    public static int packbits(byte[] inb, int off, int len, byte[] outb, int outOff)
+            throws ArrayStoreException, ArrayIndexOutOfBoundsException
+    {
+        if (len == 0) {
+            return 0;
+        }
+
         int state = RAW;
-        int pos = 0;
+        int pos = off;
+        int end = off + len;
+        int o = outOff;
+        int rawStart = off;
+        int rawLength = 0;
         int repeatCount = 0;
-        ByteArrayBuilder buf = new ByteArrayBuilder();
-        ByteArrayBuilder result = new ByteArrayBuilder();
-        for (;pos < inb.length -1; pos ++) {
+        for (;pos < end - 1; pos ++) {
             byte current = inb[pos];
             if (current == inb[pos + 1]) {
                 if(state == RAW)  {
-                    finishRaw(result, buf);
+                    o = finishRaw(inb, rawStart, rawLength, outb, o);
+                    rawLength = 0;
                     state = RLE;
                     repeatCount = 1;
                 }else if (state == RLE) {
                     if(repeatCount == MAX_LENGTH) {
-                        finishRle(result, repeatCount, current);
+                        o = finishRle(outb, o, repeatCount, current);
                         repeatCount = 0;
                     }
                     repeatCount ++;
@@ -144,39 +175,47 @@ public class Packbits
             } else {
                 if(state == RLE)  {
                     repeatCount ++;
-                    finishRle(result, repeatCount, current);
+                    o = finishRle(outb, o, repeatCount, current);
                     state = RAW;
                     repeatCount = 0;
 
                 }else if (state == RAW) {
-                    if (buf.getLength() == MAX_LENGTH) {
-                        finishRaw(result, buf);
+                    if (rawLength == MAX_LENGTH) {
+                        o = finishRaw(inb, rawStart, rawLength, outb, o);
+                        rawLength = 0;
                     }
-                    buf.append(new byte[]{current});
+                    if (rawLength == 0) {
+                        rawStart = pos;
+                    }
+                    rawLength ++;
                 }
             }
 
         }
         if (state == RAW) {
-            buf.append(new byte[]{inb[pos]});
-            finishRaw(result, buf);
+            if (rawLength == 0) {
+                rawStart = pos;
+            }
+            o = finishRaw(inb, rawStart, rawLength + 1, outb, o);
         } else {
             repeatCount ++;
-            finishRle(result, repeatCount, inb[pos]);
+            o = finishRle(outb, o, repeatCount, inb[pos]);
         }
-        return result.getByteArray();
+        return o - outOff;
     }
 
-    private static void finishRaw(ByteArrayBuilder result, ByteArrayBuilder buf) {
-        if(buf.getLength() == 0) {
-            return;
+    private static int finishRaw(byte[] inb, int rawStart, int rawLength, byte[] outb, int o) {
+        if(rawLength == 0) {
+            return o;
         }
-        result.append(new byte[]{(byte) (buf.getLength() -1)});
-        result.append(buf.getByteArray());
-        buf.clear();
+        outb[o++] = (byte) (rawLength - 1);
+        System.arraycopy(inb, rawStart, outb, o, rawLength);
+        return o + rawLength;
     }
 
-    private static void finishRle(ByteArrayBuilder result, int repeatCount, byte data) {
-        result.append(new byte[]{(byte) (256 - (repeatCount -1)), data});
+    private static int finishRle(byte[] outb, int o, int repeatCount, byte data) {
+        outb[o++] = (byte) (256 - (repeatCount - 1));
+        outb[o++] = data;
+        return o;
     }
 }
\ No newline at end of file
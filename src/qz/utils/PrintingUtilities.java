@@ -67,7 +67,7 @@ public class PrintingUtilities {
                     log.warn("Memory available is less than minimum required ({}/{} MB)", memory, Constants.MEMORY_PER_PRINT);
                 }
                 if (memory < Long.MAX_VALUE) {
-                    int maxInst = Math.max(1, (int)(memory / Constants.MEMORY_PER_PRINT));
+                    int maxInst = getProcessorLimit();
                     log.debug("Allowing {} simultaneous processors based on memory available ({} MB)", maxInst, memory);
                     processorPool.setMaxTotal(maxInst);
                     processorPool.setMaxTotalPerKey(maxInst);
@@ -82,6 +82,18 @@ public class PrintingUtilities {
         }
     }
 
+    /**
+     * @return Number of print processors allowed to run at once for the memory available, or {@code Integer.MAX_VALUE} if memory is unbounded
+     */
+    public static int getProcessorLimit() {
+        long memory = Runtime.getRuntime().maxMemory() / 1000000;
+        if (memory < Long.MAX_VALUE / 1000000) {
+            return Math.max(1, (int)Math.min(Integer.MAX_VALUE, memory / Constants.MEMORY_PER_PRINT));
+        }
+
+        return Integer.MAX_VALUE;
+    }
+
     public static void releasePrintProcessor(PrintProcessor processor) {
         try {
             log.trace("Returning processor back to pool");
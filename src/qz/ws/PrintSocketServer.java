@@ -32,6 +32,7 @@ import qz.common.Constants;
 import qz.common.SecurityInfo;
 import qz.common.TrayManager;
 import qz.deploy.DeployUtilities;
+import qz.printer.action.WebAppState;
 import qz.utils.SystemUtilities;
 
 import javax.swing.*;
@@ -98,6 +99,7 @@ public class PrintSocketServer {
                 }
             });
             runSerialProxy();
+            runWarmup();
             runServer();
             stopSerialProxy();
         }
@@ -141,6 +143,14 @@ public class PrintSocketServer {
         }
     }
 
+    /** Warms up HTML printing in the background if enabled, without holding up the socket server */
+    public static void runWarmup() {
+        trayProperties = getTrayProperties();
+        if ((trayProperties != null && trayProperties.getProperty("html.warmup", "false").equals("true")) || Boolean.getBoolean("htmlWarmup")) {
+            WebAppState.warmup();
+        }
+    }
+
     public static void stopSerialProxy() {
         if (serialProxy != null) {
             serialProxy.stop();
@@ -236,6 +246,31 @@ public class PrintSocketServer {
         return trayProperties;
     }
 
+    /**
+     * Reads a numeric setting from the tray properties, or from the system properties if not set there
+     */
+    public static long getTraySetting(String property, String systemProperty, long defaultValue) {
+        String value = null;
+        Properties properties = getTrayProperties();
+        if (properties != null) {
+            value = properties.getProperty(property);
+        }
+        if (value == null) {
+            value = System.getProperty(systemProperty);
+        }
+
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            }
+            catch(NumberFormatException e) {
+                log.warn("Invalid value \"{}\" for {}, using {}", value, property, defaultValue);
+            }
+        }
+
+        return defaultValue;
+    }
+
     public static int getSecurePortInUse() {
         return SECURE_PORTS.get(securePortIndex.get());
     }
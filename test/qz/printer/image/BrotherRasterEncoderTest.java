@@ -0,0 +1,151 @@
+package qz.printer.image;
+
+import org.codehaus.jettison.json.JSONObject;
+import qz.printer.ImageWrapper;
+import qz.printer.LanguageType;
+import qz.utils.Packbits;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Decodes the output of {@link BrotherRasterEncoder} back into a bitmap and checks it against the image it was made from,
+ * then times the encoder on a full size label.
+ * <p/>
+ * Run by the {@code test} target of the build, which fails if any check throws.
+ */
+public class BrotherRasterEncoderTest {
+
+    // Bytes in a Brother raster line, as sent by the encoder
+    private static final int LINE_BYTES = 162;
+
+    private static final BrotherRasterEncoder encoder = new BrotherRasterEncoder();
+
+
+    public static void main(String[] args) throws Exception {
+        // full width, narrower than a line so rows are padded, and tall enough to be encoded in parallel
+        check(LINE_BYTES * 8, 400);
+        check(700, 300);
+        check(1, 5);
+        check(LINE_BYTES * 8, 4000);
+        System.out.println("Brother raster output matches its images");
+
+        benchmark(LINE_BYTES * 8, 4000, 50);
+    }
+
+    private static void check(int width, int height) throws Exception {
+        ImageWrapper image = new ImageWrapper(createImage(width, height), LanguageType.BRASTER);
+        byte[] output = encode(image);
+
+        byte[] bits = image.getPackedBits();
+        int bytesPerRow = image.getBytesPerRow();
+        int lineBytes = Math.max(LINE_BYTES, bytesPerRow);
+
+        // print information command, carrying the number of rows
+        expect(output[0] == 0x1B && output[1] == 0x69 && output[2] == 0x7A, "print information command");
+        int rows = (output[7] & 0xFF) | (output[8] & 0xFF) << 8 | (output[9] & 0xFF) << 16 | (output[10] & 0xFF) << 24;
+        expect(rows == height, "row count " + rows + " in header, expected " + height);
+        // compression mode
+        expect(output[13] == 0x4D && output[14] == 0x02, "packbits compression mode");
+
+        byte[] line = new byte[lineBytes];
+        byte[] row = new byte[bytesPerRow];
+        int pos = 15;
+        int blanks = 0;
+        for(int y = 0; y < height; y++) {
+            expect(pos < output.length, "missing row " + y + " of " + height);
+
+            boolean sentBlank = output[pos] == 0x5A;
+            if (sentBlank) {
+                Arrays.fill(line, (byte)0);
+                pos++;
+                blanks++;
+            } else {
+                expect(output[pos] == 0x67 && output[pos + 1] == 0x00, "raster line command at row " + y);
+                int length = output[pos + 2] & 0xFF;
+                Packbits.unpackbits(Arrays.copyOfRange(output, pos + 3, pos + 3 + length), line);
+                pos += 3 + length;
+            }
+
+            // lines are sent mirrored, with the padding after the image
+            for(int i = 0; i < bytesPerRow; i++) {
+                row[i] = (byte)(Integer.reverse(line[bytesPerRow - 1 - i] & 0xFF) >>> 24);
+            }
+            for(int i = bytesPerRow; i < lineBytes; i++) {
+                expect(line[i] == 0, "blank padding at row " + y);
+            }
+
+            byte[] expected = Arrays.copyOfRange(bits, y * bytesPerRow, (y + 1) * bytesPerRow);
+            expect(Arrays.equals(row, expected), "row " + y + " of " + width + "x" + height + " image");
+            expect(sentBlank == isBlank(expected), "blank rows, and only blank rows, should be sent as a single Z at row " + y);
+        }
+        expect(pos == output.length, (output.length - pos) + " bytes after the last row");
+        expect(height < 10 || (blanks > 0 && blanks < height), "image should have both blank and printed rows");
+    }
+
+    private static void benchmark(int width, int height, int runs) throws Exception {
+        ImageWrapper image = new ImageWrapper(createImage(width, height), LanguageType.BRASTER);
+
+        // warm up before timing
+        for(int i = 0; i < 5; i++) {
+            encode(image);
+        }
+
+        long start = System.nanoTime();
+        long bytes = 0;
+        for(int i = 0; i < runs; i++) {
+            bytes += encode(image).length;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format("Encoded %d %dx%d images to %d bytes in %d ms, %.2f ms each",
+                                         runs, width, height, bytes, elapsed / 1000000, elapsed / 1000000.0 / runs));
+    }
+
+    private static byte[] encode(ImageWrapper image) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.encode(image, new JSONObject(), out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Label with blank margins and bands between text, solid bars and noise, so rows cover every kind of packbits run
+     */
+    private static BufferedImage createImage(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, width, height);
+
+        g.setColor(Color.BLACK);
+        g.setFont(new Font(Font.SANS_SERIF, Font.BOLD, 40));
+        Random random = new Random(width * 31 + height);
+        for(int y = height / 10; y < height - 60; y += 120) {
+            g.drawString("Brother raster " + y, width / 8, y + 40);
+            g.fillRect(width / 2, y + 50, width / 3, 10);
+            for(int x = 0; x < width; x += 1 + random.nextInt(6)) {
+                image.setRGB(x, y + 65 + random.nextInt(10), 0);
+            }
+        }
+        g.dispose();
+
+        return image;
+    }
+
+    private static boolean isBlank(byte[] row) {
+        for(byte b : row) {
+            if (b != 0) { return false; }
+        }
+        return true;
+    }
+
+    private static void expect(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+}